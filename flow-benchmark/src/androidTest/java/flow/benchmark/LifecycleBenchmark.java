@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Compares the cost of Flow's two lifecycle integrations: the retained Fragment, and lifecycle
+ * callbacks with no Fragment. Each sample runs from the request to the first traversal Flow
+ * dispatches to the Activity. Process start is not measured, as both integrations pay it alike.
+ * <p>
+ * Run with {@code ./gradlew :flow-benchmark:connectedAndroidTest}, and find the results in the
+ * instrumentation output or in logcat under {@code FlowBenchmark}.
+ */
+public class LifecycleBenchmark {
+  private static final int WARMUP = 5;
+  private static final int RUNS = 30;
+
+  private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+
+  @Test public void createWithFragment() {
+    Stats.report("create, Fragment", create(FragmentBenchmarkActivity.class));
+  }
+
+  @Test public void createWithCallbacks() {
+    Stats.report("create, callbacks", create(CallbacksBenchmarkActivity.class));
+  }
+
+  @Test public void rotateWithFragment() {
+    Stats.report("rotate, Fragment", recreate(FragmentBenchmarkActivity.class));
+  }
+
+  @Test public void rotateWithCallbacks() {
+    Stats.report("rotate, callbacks", recreate(CallbacksBenchmarkActivity.class));
+  }
+
+  /** @return the time from starting the Activity to its first traversal, for each run */
+  private long[] create(Class<? extends BenchmarkActivity> activityClass) {
+    long[] samples = new long[RUNS];
+    for (int i = -WARMUP; i < RUNS; i++) {
+      Intent intent = new Intent(instrumentation.getTargetContext(), activityClass) //
+          .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+      long start = System.nanoTime();
+      Activity activity = instrumentation.startActivitySync(intent);
+      if (i >= 0) samples[i] = BenchmarkActivity.dispatchedAt - start;
+      finish(activity);
+    }
+    return samples;
+  }
+
+  /**
+   * @return the time from recreating the Activity, as for a configuration change, to the first
+   * traversal of its new instance, for each run
+   */
+  private long[] recreate(Class<? extends BenchmarkActivity> activityClass) {
+    Intent intent = new Intent(instrumentation.getTargetContext(), activityClass) //
+        .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+    instrumentation.startActivitySync(intent);
+    long[] samples = new long[RUNS];
+    for (int i = -WARMUP; i < RUNS; i++) {
+      final BenchmarkActivity activity = BenchmarkActivity.current;
+      long start = System.nanoTime();
+      instrumentation.runOnMainSync(new Runnable() {
+        @Override public void run() {
+          activity.recreate();
+        }
+      });
+      instrumentation.waitForIdleSync();
+      assertNotSame(activity, BenchmarkActivity.current);
+      if (i >= 0) samples[i] = BenchmarkActivity.dispatchedAt - start;
+    }
+    finish(BenchmarkActivity.current);
+    return samples;
+  }
+
+  private void finish(Activity activity) {
+    activity.finish();
+    instrumentation.waitForIdleSync();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.Locale;
+
+/** Summarizes benchmark samples, and reports them to logcat and to the instrumentation. */
+final class Stats {
+  private static final String TAG = "FlowBenchmark";
+
+  static void report(String name, long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    long total = 0;
+    for (long sample : sorted) {
+      total += sample;
+    }
+    String summary = String.format(Locale.US,
+        "%s: median %.3f ms, mean %.3f ms, p90 %.3f ms (n=%d)", name,
+        millis(sorted[sorted.length / 2]), millis(total / sorted.length),
+        millis(sorted[sorted.length * 9 / 10]), sorted.length);
+    send(summary);
+  }
+
+  /** Reports the time per call of batches of calls. */
+  static void reportPerCall(String name, long[] batchNanos, int callsPerBatch) {
+    long[] sorted = batchNanos.clone();
+    Arrays.sort(sorted);
+    String summary = String.format(Locale.US, "%s: median %.1f ns per call (%d batches of %d)",
+        name, (double) sorted[sorted.length / 2] / callsPerBatch, sorted.length, callsPerBatch);
+    send(summary);
+  }
+
+  private static void send(String summary) {
+    Log.i(TAG, summary);
+    Bundle results = new Bundle();
+    results.putString(Instrumentation.REPORT_KEY_STREAMRESULT, summary + "\n");
+    InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private Stats() {
+    throw new AssertionError();
+  }
+}
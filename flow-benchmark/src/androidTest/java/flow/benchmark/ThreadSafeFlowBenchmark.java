@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.app.Instrumentation;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import flow.Flow;
+import flow.ThreadSafeFlow;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Navigates from many threads at once, through {@link ThreadSafeFlow} and, for comparison, by
+ * posting each call to the main thread with a Handler, as apps otherwise do by hand. Each thread
+ * makes a batch of calls alternating between two keys. Reported per call are the time threads
+ * spend submitting, which grows with contention, and the time until the main thread has applied
+ * every call.
+ */
+public class ThreadSafeFlowBenchmark {
+  private static final int[] THREADS = {1, 2, 4, 8, 16};
+  private static final int CALLS = 2000;
+  private static final int WARMUP = 3;
+  private static final int RUNS = 10;
+
+  @Rule public final ActivityTestRule<CallbacksBenchmarkActivity> rule =
+      new ActivityTestRule<>(CallbacksBenchmarkActivity.class);
+
+  private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+
+  private abstract static class Submitter {
+    abstract void set(Flow flow, Object key);
+  }
+
+  @Test public void threadSafeFlow() throws InterruptedException {
+    for (int threads : THREADS) {
+      time("ThreadSafeFlow", threads, new Submitter() {
+        @Override void set(Flow flow, Object key) {
+          flow.threadSafe().set(key);
+        }
+      });
+    }
+  }
+
+  @Test public void handlerPerCall() throws InterruptedException {
+    final Handler mainHandler = new Handler(Looper.getMainLooper());
+    for (int threads : THREADS) {
+      time("Handler per call", threads, new Submitter() {
+        @Override void set(final Flow flow, final Object key) {
+          mainHandler.post(new Runnable() {
+            @Override public void run() {
+              flow.set(key);
+            }
+          });
+        }
+      });
+    }
+  }
+
+  private void time(String name, int threads, final Submitter submitter)
+      throws InterruptedException {
+    final Flow flow = Flow.get(rule.getActivity());
+    long[] submitting = new long[RUNS];
+    long[] applying = new long[RUNS];
+    for (int i = -WARMUP; i < RUNS; i++) {
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch submitted = new CountDownLatch(threads);
+      final AtomicLong submitNanos = new AtomicLong();
+      for (int t = 0; t < threads; t++) {
+        new Thread(new Runnable() {
+          @Override public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            long begin = System.nanoTime();
+            for (int call = 0; call < CALLS; call++) {
+              submitter.set(flow, call % 2 == 0 ? "A" : "B");
+            }
+            submitNanos.addAndGet(System.nanoTime() - begin);
+            submitted.countDown();
+          }
+        }).start();
+      }
+
+      long begin = System.nanoTime();
+      start.countDown();
+      submitted.await();
+      instrumentation.waitForIdleSync();
+      long end = System.nanoTime();
+      assertEquals("B", flow.getHistory().top());
+      if (i >= 0) {
+        submitting[i] = submitNanos.get() / threads;
+        applying[i] = end - begin;
+      }
+    }
+    Stats.reportPerCall(name + ", " + threads + " threads, submit", submitting, CALLS);
+    Stats.reportPerCall(name + ", " + threads + " threads, applied", applying, threads * CALLS);
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.view.View;
+import flow.Flow;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Compares Flow's lookups from a View, which are cached on the View, to the same lookups from its
+ * Context, which walk the chain of ContextWrappers each time. The View's Context is wrapped a few
+ * times over the one Flow made for its key, as by theme overlays and support libraries.
+ */
+public class ViewLookupBenchmark {
+  private static final int WRAPPERS = 3;
+  private static final int WARMUP = 5;
+  private static final int BATCHES = 20;
+  private static final int CALLS = 10000;
+
+  @Rule public final ActivityTestRule<CallbacksBenchmarkActivity> rule =
+      new ActivityTestRule<>(CallbacksBenchmarkActivity.class);
+
+  private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+
+  private abstract static class Lookup {
+    abstract Object run();
+  }
+
+  @Test public void getKey() {
+    final View view = newView();
+    final Context context = view.getContext();
+    time("getKey(Context)", new Lookup() {
+      @Override Object run() {
+        return Flow.getKey(context);
+      }
+    });
+    time("getKey(View)", new Lookup() {
+      @Override Object run() {
+        return Flow.getKey(view);
+      }
+    });
+  }
+
+  @Test public void getService() {
+    final View view = newView();
+    final Context context = view.getContext();
+    time("getService(Context)", new Lookup() {
+      @Override Object run() {
+        return Flow.getService("missing", context);
+      }
+    });
+    time("getService(View)", new Lookup() {
+      @Override Object run() {
+        return Flow.getService("missing", view);
+      }
+    });
+  }
+
+  @Test public void get() {
+    final View view = newView();
+    final Context context = view.getContext();
+    time("get(Context)", new Lookup() {
+      @Override Object run() {
+        return Flow.get(context);
+      }
+    });
+    time("get(View)", new Lookup() {
+      @Override Object run() {
+        return Flow.get(view);
+      }
+    });
+  }
+
+  private View newView() {
+    Context context = rule.getActivity().keyContext;
+    for (int i = 0; i < WRAPPERS; i++) {
+      context = new ContextWrapper(context);
+    }
+    return new View(context);
+  }
+
+  /** Times batches of lookups on the main thread, where Views make them. */
+  private void time(String name, final Lookup lookup) {
+    final long[] batches = new long[BATCHES];
+    instrumentation.runOnMainSync(new Runnable() {
+      @Override public void run() {
+        for (int batch = -WARMUP; batch < BATCHES; batch++) {
+          long start = System.nanoTime();
+          for (int i = 0; i < CALLS; i++) {
+            lookup.run();
+          }
+          if (batch >= 0) batches[batch] = System.nanoTime() - start;
+        }
+      }
+    });
+    Stats.reportPerCall(name, batches, CALLS);
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.app.Activity;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import flow.Dispatcher;
+import flow.Flow;
+import flow.Traversal;
+import flow.TraversalCallback;
+
+/**
+ * Installs Flow with a dispatcher that only records when it was first called, i.e. when Flow is
+ * ready to show the Activity's first screen.
+ */
+public abstract class BenchmarkActivity extends Activity {
+  /** The Activity most recently created, to follow it across recreation. */
+  static volatile BenchmarkActivity current;
+  /** {@link System#nanoTime()} when the latest Activity received its first traversal. */
+  static volatile long dispatchedAt;
+
+  /** The Context Flow made for the key shown. */
+  Context keyContext;
+  private boolean dispatched;
+
+  /** @see flow.Installer#retainWithFragment */
+  abstract boolean retainWithFragment();
+
+  @Override protected void attachBaseContext(Context baseContext) {
+    current = this;
+    baseContext = Flow.configure(baseContext, this) //
+        .retainWithFragment(retainWithFragment()) //
+        .defaultKey("Benchmark") //
+        .dispatcher(new Dispatcher() {
+          @Override public void dispatch(@NonNull Traversal traversal,
+              @NonNull TraversalCallback callback) {
+            if (!dispatched) {
+              dispatched = true;
+              dispatchedAt = System.nanoTime();
+              keyContext = traversal.createContext(traversal.destination.top(),
+                  BenchmarkActivity.this);
+            }
+            callback.onTraversalCompleted();
+          }
+        }) //
+        .install();
+    super.attachBaseContext(baseContext);
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.content.Intent;
+import android.support.annotation.NonNull;
+
+/** Reaches into Flow for the benchmarks, which live outside its package. */
+public final class BenchmarkHooks {
+  /**
+   * Removes Flow's in-process shortcut for the history in the given Intent, so that the history is
+   * read from the Intent as it would be by a new process.
+   */
+  public static void removeHandoff(@NonNull Intent intent) {
+    intent.removeExtra(InternalLifecycleIntegration.HANDOFF_KEY);
+  }
+
+  private BenchmarkHooks() {
+    throw new AssertionError();
+  }
+}
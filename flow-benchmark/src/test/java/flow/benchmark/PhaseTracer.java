@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.support.annotation.NonNull;
+import flow.Tracer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Times the sections Flow traces, summed per run. */
+final class PhaseTracer extends Tracer {
+  private final Map<String, List<Long>> samples = new LinkedHashMap<>();
+  private final Map<String, Long> run = new LinkedHashMap<>();
+  private final Deque<String> names = new ArrayDeque<>();
+  private final Deque<Long> starts = new ArrayDeque<>();
+
+  PhaseTracer(String... phases) {
+    for (String phase : phases) {
+      samples.put(phase, new ArrayList<Long>());
+    }
+  }
+
+  @Override public void beginSection(@NonNull String name) {
+    names.push(name);
+    starts.push(System.nanoTime());
+  }
+
+  @Override public void endSection() {
+    record(names.pop(), System.nanoTime() - starts.pop());
+  }
+
+  /** Adds to the time of the given phase in the current run. */
+  void record(String phase, long nanos) {
+    Long sum = run.get(phase);
+    run.put(phase, sum == null ? nanos : sum + nanos);
+  }
+
+  /** Ends the current run, keeping its times if it was not for warming up. */
+  void endRun(boolean keep) {
+    if (keep) {
+      for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+        Long nanos = run.get(entry.getKey());
+        if (nanos != null) entry.getValue().add(nanos);
+      }
+    }
+    run.clear();
+  }
+
+  /** Prints the median time of each phase, and clears the samples. */
+  void report(String scenario) {
+    StringBuilder line = new StringBuilder(scenario).append(':');
+    for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+      line.append(' ').append(entry.getKey()).append(' ');
+      List<Long> phase = entry.getValue();
+      if (phase.isEmpty()) {
+        line.append('-');
+      } else {
+        Long[] sorted = phase.toArray(new Long[phase.size()]);
+        Arrays.sort(sorted);
+        line.append(String.format(Locale.US, "%.1f us", sorted[sorted.length / 2] / 1e3));
+      }
+      phase.clear();
+    }
+    System.out.println(line);
+  }
+}
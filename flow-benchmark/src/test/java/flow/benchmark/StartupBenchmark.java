@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.benchmark;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import flow.BenchmarkHooks;
+import flow.Dispatcher;
+import flow.Flow;
+import flow.History;
+import flow.Installer;
+import flow.KeyParceler;
+import flow.Tracer;
+import flow.Traversal;
+import flow.TraversalCallback;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+
+import static android.content.res.Configuration.ORIENTATION_LANDSCAPE;
+import static android.content.res.Configuration.ORIENTATION_PORTRAIT;
+
+/**
+ * Times each phase of Flow's start in an Activity, from {@link Flow#configure} to the first
+ * {@link Dispatcher#dispatch}, when the Activity is launched, rotated, and restored after process
+ * death, with histories of 1, 10 and 100 frames. Medians are printed to stdout. Excluded from the
+ * build; run with {@code ./gradlew :flow-benchmark:testReleaseUnitTest -Pbenchmark}.
+ * <p>
+ * This runs on the JVM, so absolute times are not those of a device; compare phases and runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StartupBenchmark {
+  private static final int WARMUP = 10;
+  private static final int RUNS = 50;
+  private static final int[] FRAMES = {1, 10, 100};
+  private static final String CONFIGURE = "Flow.configure";
+
+  static final KeyParceler PARCELER = new KeyParceler() {
+    @NonNull @Override public Parcelable toParcelable(@NonNull Object key) {
+      Bundle bundle = new Bundle();
+      bundle.putString("key", (String) key);
+      return bundle;
+    }
+
+    @NonNull @Override public Object toKey(@NonNull Parcelable parcelable) {
+      return ((Bundle) parcelable).getString("key");
+    }
+  };
+
+  static final PhaseTracer tracer = new PhaseTracer(CONFIGURE, Tracer.INSTALL, Tracer.CREATE,
+      Tracer.SELECT_HISTORY, Tracer.SET_UP, Tracer.DISPATCH);
+
+  public static class StartupActivity extends Activity {
+    /** @see Installer#retainWithFragment */
+    static boolean retainWithFragment;
+
+    @Override protected void attachBaseContext(Context baseContext) {
+      long start = System.nanoTime();
+      Installer installer = Flow.configure(baseContext, this);
+      tracer.record(CONFIGURE, System.nanoTime() - start);
+      baseContext = installer //
+          .keyParceler(PARCELER) //
+          .retainWithFragment(retainWithFragment) //
+          .tracer(tracer) //
+          .dispatcher(new Dispatcher() {
+            @Override public void dispatch(@NonNull Traversal traversal,
+                @NonNull TraversalCallback callback) {
+              callback.onTraversalCompleted();
+            }
+          }) //
+          .install();
+      super.attachBaseContext(baseContext);
+    }
+  }
+
+  @Test public void launch() {
+    launch(true);
+    launch(false);
+  }
+
+  private void launch(boolean retainWithFragment) {
+    StartupActivity.retainWithFragment = retainWithFragment;
+    for (int frames : FRAMES) {
+      for (int i = -WARMUP; i < RUNS; i++) {
+        Intent intent = intentWithHistory(frames);
+        // A new process would not find Flow's shortcut for Intents sent within this one.
+        BenchmarkHooks.removeHandoff(intent);
+        ActivityController<StartupActivity> controller =
+            Robolectric.buildActivity(StartupActivity.class, intent).setup();
+        tracer.endRun(i >= 0);
+        controller.pause().stop().destroy();
+      }
+      tracer.report(integration() + " launch, " + frames + " frames");
+    }
+  }
+
+  /**
+   * Without a Fragment only: Robolectric does not pass retained Fragments to the recreated
+   * Activity, which would then rebuild Flow as if after process death.
+   */
+  @Test public void rotate() {
+    StartupActivity.retainWithFragment = false;
+    for (int frames : FRAMES) {
+      ActivityController<StartupActivity> controller =
+          Robolectric.buildActivity(StartupActivity.class, intentWithHistory(frames)).setup();
+      tracer.endRun(false);
+      for (int i = -WARMUP; i < RUNS; i++) {
+        Configuration config =
+            new Configuration(controller.get().getResources().getConfiguration());
+        config.orientation = i % 2 == 0 ? ORIENTATION_LANDSCAPE : ORIENTATION_PORTRAIT;
+        controller.configurationChange(config);
+        tracer.endRun(i >= 0);
+      }
+      controller.pause().stop().destroy();
+      tracer.report(integration() + " rotate, " + frames + " frames");
+    }
+  }
+
+  @Test public void restoreAfterProcessDeath() {
+    restoreAfterProcessDeath(true);
+    restoreAfterProcessDeath(false);
+  }
+
+  private void restoreAfterProcessDeath(boolean retainWithFragment) {
+    StartupActivity.retainWithFragment = retainWithFragment;
+    for (int frames : FRAMES) {
+      ActivityController<StartupActivity> controller =
+          Robolectric.buildActivity(StartupActivity.class, intentWithHistory(frames)).setup();
+      Bundle saved = new Bundle();
+      controller.saveInstanceState(saved).pause().stop().destroy();
+      tracer.endRun(false);
+      for (int i = -WARMUP; i < RUNS; i++) {
+        controller = Robolectric.buildActivity(StartupActivity.class).setup(reparcel(saved));
+        tracer.endRun(i >= 0);
+        controller.pause().stop().destroy();
+      }
+      tracer.report(integration() + " restore, " + frames + " frames");
+    }
+  }
+
+  private static String integration() {
+    return StartupActivity.retainWithFragment ? "Fragment" : "callbacks";
+  }
+
+  private static Intent intentWithHistory(int frames) {
+    History.Builder history = History.emptyBuilder();
+    for (int i = 0; i < frames; i++) {
+      history.push("Frame " + i);
+    }
+    Intent intent = new Intent();
+    Flow.addHistory(intent, history.build(), PARCELER);
+    return intent;
+  }
+
+  /** @return a copy of the given state, as read back by a new process */
+  private static Bundle reparcel(Bundle saved) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      saved.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      return parcel.readBundle(StartupBenchmark.class.getClassLoader());
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
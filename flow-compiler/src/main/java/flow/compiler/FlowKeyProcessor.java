@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code KeyParceler} for every class annotated {@code @FlowKey}: a codec class next
+ * to each key, which can reach its package-private fields and constructor, and one parceler that
+ * tags each key with an int and hands it to its codec.
+ * <p>
+ * The parceler is named by the {@value #OPTION_PARCELER} option, and defaults to
+ * {@value #DEFAULT_PARCELER}.
+ */
+@SupportedOptions(FlowKeyProcessor.OPTION_PARCELER)
+public final class FlowKeyProcessor extends AbstractProcessor {
+  static final String OPTION_PARCELER = "flow.keyParceler";
+  static final String DEFAULT_PARCELER = "flow.GeneratedKeyParceler";
+  private static final String FLOW_KEY = "flow.FlowKey";
+  private static final String NOT_PERSISTENT = "flow.NotPersistent";
+  private static final String PARCELABLE = "android.os.Parcelable";
+
+  private Elements elements;
+  private Types types;
+  private Messager messager;
+  private String parcelerName;
+  private final Map<String, KeyType> keys = new TreeMap<>();
+  private boolean parcelerWritten;
+
+  @Override public synchronized void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    elements = processingEnv.getElementUtils();
+    types = processingEnv.getTypeUtils();
+    messager = processingEnv.getMessager();
+    String option = processingEnv.getOptions().get(OPTION_PARCELER);
+    parcelerName = option == null || option.isEmpty() ? DEFAULT_PARCELER : option;
+  }
+
+  @Override public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(FLOW_KEY);
+  }
+
+  @Override public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override public boolean process(Set<? extends TypeElement> annotations,
+      RoundEnvironment roundEnv) {
+    TypeElement flowKey = elements.getTypeElement(FLOW_KEY);
+    if (flowKey == null) return false;
+
+    List<KeyType> found = new ArrayList<>();
+    for (Element element : roundEnv.getElementsAnnotatedWith(flowKey)) {
+      KeyType key = parse((TypeElement) element, flowKey);
+      if (key != null) found.add(key);
+    }
+    if (found.isEmpty()) return false;
+    if (parcelerWritten) {
+      error(found.get(0).element,
+          "@FlowKey classes must not be generated by other annotation processors");
+      return false;
+    }
+
+    Map<Integer, KeyType> byTag = new HashMap<>();
+    for (KeyType key : keys.values()) {
+      byTag.put(key.tag, key);
+    }
+    boolean valid = true;
+    for (KeyType key : found) {
+      KeyType clash = byTag.put(key.tag, key);
+      if (clash != null) {
+        error(key.element, "@FlowKey tag of " + key.binaryName + " collides with that of "
+            + clash.binaryName + ". Rename either class.");
+        valid = false;
+      }
+      keys.put(key.binaryName, key);
+    }
+    if (!valid) return false;
+
+    List<Element> origins = new ArrayList<>();
+    for (KeyType key : found) {
+      write(key.codecName(), key.codecSource(parcelerName), key.element);
+      origins.add(key.element);
+    }
+    write(parcelerName, KeyType.parcelerSource(parcelerName, keys.values()),
+        origins.toArray(new Element[origins.size()]));
+    parcelerWritten = true;
+    return false;
+  }
+
+  private KeyType parse(TypeElement type, TypeElement flowKey) {
+    if (type.getKind() != ElementKind.CLASS && type.getKind() != ElementKind.ENUM) {
+      error(type, "@FlowKey may only be applied to classes and enums");
+      return null;
+    }
+    if (type.getModifiers().contains(Modifier.PRIVATE)
+        || type.getModifiers().contains(Modifier.ABSTRACT)) {
+      error(type, "@FlowKey classes must be neither private nor abstract");
+      return null;
+    }
+    if (type.getNestingKind() == NestingKind.MEMBER
+        && !type.getModifiers().contains(Modifier.STATIC)
+        && type.getKind() != ElementKind.ENUM) {
+      error(type, "Nested @FlowKey classes must be static");
+      return null;
+    }
+    if (type.getNestingKind() == NestingKind.LOCAL
+        || type.getNestingKind() == NestingKind.ANONYMOUS) {
+      error(type, "@FlowKey classes must not be local or anonymous");
+      return null;
+    }
+    if (!type.getTypeParameters().isEmpty()) {
+      error(type, "@FlowKey classes must not be generic");
+      return null;
+    }
+
+    String binaryName = elements.getBinaryName(type).toString();
+    String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+    TypeElement notPersistent = elements.getTypeElement(NOT_PERSISTENT);
+    boolean persistent = notPersistent == null || !hasAnnotation(type, notPersistent);
+    if (type.getKind() == ElementKind.ENUM) {
+      return new KeyType(type, binaryName, packageName, persistent,
+          Collections.<KeyField>emptyList());
+    }
+
+    List<KeyField> fields = new ArrayList<>();
+    List<TypeMirror> fieldTypes = new ArrayList<>();
+    for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+      Set<Modifier> modifiers = field.getModifiers();
+      if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+      if (modifiers.contains(Modifier.PRIVATE)) {
+        error(field, "@FlowKey fields must not be private; mark it transient if it is not state");
+        return null;
+      }
+      TypeMirror fieldType = field.asType();
+      KeyField.Kind kind = kindOf(fieldType, flowKey);
+      if (kind == null) {
+        error(field, "Unsupported @FlowKey field type " + fieldType + ". Use primitives, String, "
+            + "enums, Parcelable or other @FlowKey types, or mark it transient.");
+        return null;
+      }
+      fields.add(new KeyField(field.getSimpleName().toString(), kind,
+          types.erasure(fieldType).toString()));
+      fieldTypes.add(fieldType);
+    }
+
+    if (!hasConstructor(type, fieldTypes)) {
+      StringBuilder signature = new StringBuilder();
+      for (TypeMirror fieldType : fieldTypes) {
+        if (signature.length() > 0) signature.append(", ");
+        signature.append(fieldType);
+      }
+      error(type, "@FlowKey classes need a non-private constructor taking their fields in order: ("
+          + signature + ")");
+      return null;
+    }
+    return new KeyType(type, binaryName, packageName, persistent, fields);
+  }
+
+  private KeyField.Kind kindOf(TypeMirror type, TypeElement flowKey) {
+    switch (type.getKind()) {
+      case BOOLEAN:
+        return KeyField.Kind.BOOLEAN;
+      case BYTE:
+        return KeyField.Kind.BYTE;
+      case SHORT:
+        return KeyField.Kind.SHORT;
+      case CHAR:
+        return KeyField.Kind.CHAR;
+      case INT:
+        return KeyField.Kind.INT;
+      case LONG:
+        return KeyField.Kind.LONG;
+      case FLOAT:
+        return KeyField.Kind.FLOAT;
+      case DOUBLE:
+        return KeyField.Kind.DOUBLE;
+      case DECLARED:
+        break;
+      default:
+        return null;
+    }
+
+    Element element = ((DeclaredType) type).asElement();
+    if (element.getKind() == ElementKind.ENUM) return KeyField.Kind.ENUM;
+    if (((TypeElement) element).getQualifiedName().contentEquals("java.lang.String")) {
+      return KeyField.Kind.STRING;
+    }
+    if (hasAnnotation(element, flowKey)) return KeyField.Kind.KEY;
+    TypeElement parcelable = elements.getTypeElement(PARCELABLE);
+    if (parcelable != null && types.isAssignable(type, parcelable.asType())) {
+      return KeyField.Kind.PARCELABLE;
+    }
+    return null;
+  }
+
+  private boolean hasConstructor(TypeElement type, List<TypeMirror> fieldTypes) {
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (constructor.getModifiers().contains(Modifier.PRIVATE)) continue;
+      List<? extends VariableElement> parameters = constructor.getParameters();
+      if (parameters.size() != fieldTypes.size()) continue;
+      boolean matches = true;
+      for (int i = 0; i < parameters.size() && matches; i++) {
+        matches = types.isSameType(parameters.get(i).asType(), fieldTypes.get(i));
+      }
+      if (matches) return true;
+    }
+    return false;
+  }
+
+  private static boolean hasAnnotation(Element element, TypeElement annotation) {
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      if (mirror.getAnnotationType().asElement().equals(annotation)) return true;
+    }
+    return false;
+  }
+
+  private void write(String name, String source, Element... origins) {
+    try {
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(name, origins);
+      Writer writer = file.openWriter();
+      try {
+        writer.write(source);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      messager.printMessage(Diagnostic.Kind.ERROR, "Unable to write " + name + ": " + e);
+    }
+  }
+
+  private void error(Element element, String message) {
+    messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.compiler;
+
+/** A persisted field of a {@code @FlowKey} class, and how to write it to a Parcel. */
+final class KeyField {
+  enum Kind {
+    BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE, STRING, ENUM, PARCELABLE, KEY
+  }
+
+  final String name;
+  final Kind kind;
+  /** The erased type, as it is written in source. */
+  final String typeName;
+
+  KeyField(String name, Kind kind, String typeName) {
+    this.name = name;
+    this.kind = kind;
+    this.typeName = typeName;
+  }
+
+  /** @return a statement writing {@code value} to the Parcel {@code out}. */
+  String write(String value, String parceler) {
+    switch (kind) {
+      case BOOLEAN:
+        return "out.writeInt(" + value + " ? 1 : 0);";
+      case BYTE:
+        return "out.writeByte(" + value + ");";
+      case SHORT:
+      case CHAR:
+      case INT:
+        return "out.writeInt(" + value + ");";
+      case LONG:
+        return "out.writeLong(" + value + ");";
+      case FLOAT:
+        return "out.writeFloat(" + value + ");";
+      case DOUBLE:
+        return "out.writeDouble(" + value + ");";
+      case STRING:
+        return "out.writeString(" + value + ");";
+      case ENUM:
+        return parceler + ".writeEnum(out, " + value + ");";
+      case PARCELABLE:
+        return "out.writeParcelable(" + value + ", 0);";
+      case KEY:
+        return parceler + ".write(out, " + value + ", refs);";
+      default:
+        throw new AssertionError(kind);
+    }
+  }
+
+  /** @return an expression reading this field from the Parcel {@code in}. */
+  String read(String codec, String parceler) {
+    switch (kind) {
+      case BOOLEAN:
+        return "in.readInt() != 0";
+      case BYTE:
+        return "in.readByte()";
+      case SHORT:
+        return "(short) in.readInt()";
+      case CHAR:
+        return "(char) in.readInt()";
+      case INT:
+        return "in.readInt()";
+      case LONG:
+        return "in.readLong()";
+      case FLOAT:
+        return "in.readFloat()";
+      case DOUBLE:
+        return "in.readDouble()";
+      case STRING:
+        return "in.readString()";
+      case ENUM:
+        return parceler + ".readEnum(in, " + typeName + ".class)";
+      case PARCELABLE:
+        return "(" + typeName + ") in.readParcelable(" + codec + ".class.getClassLoader())";
+      case KEY:
+        return "(" + typeName + ") " + parceler + ".read(in, refs)";
+      default:
+        throw new AssertionError(kind);
+    }
+  }
+}
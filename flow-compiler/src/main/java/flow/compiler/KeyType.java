@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.compiler;
+
+import java.util.Collection;
+import java.util.List;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+
+/** A {@code @FlowKey} class, and the source of its codec. */
+final class KeyType {
+  private static final String HEADER = "// Generated by flow-compiler. Do not modify!\n";
+
+  final TypeElement element;
+  final String binaryName;
+  final String packageName;
+  /** False if the class is annotated {@code @NotPersistent}. */
+  final boolean persistent;
+  final List<KeyField> fields;
+  /**
+   * Identifies the key in the parcel. Derived from the class name and the types of its fields, so
+   * that parcels written before the key's fields changed fail to read rather than misread.
+   */
+  final int tag;
+
+  KeyType(TypeElement element, String binaryName, String packageName, boolean persistent,
+      List<KeyField> fields) {
+    this.element = element;
+    this.binaryName = binaryName;
+    this.packageName = packageName;
+    this.persistent = persistent;
+    this.fields = fields;
+
+    StringBuilder layout = new StringBuilder(binaryName);
+    if (isEnum()) {
+      layout.append("{enum}");
+    } else {
+      layout.append('(');
+      for (KeyField field : fields) {
+        if (layout.charAt(layout.length() - 1) != '(') layout.append(',');
+        layout.append(field.typeName);
+      }
+      layout.append(')');
+    }
+    int hash = layout.toString().hashCode();
+    // Zero and one mark null keys and back-references.
+    this.tag = hash == 0 || hash == 1 ? hash + 2 : hash;
+  }
+
+  String codecName() {
+    return packageName.isEmpty() ? codecSimpleName() : packageName + "." + codecSimpleName();
+  }
+
+  String codecSource(String parceler) {
+    String type = element.getQualifiedName().toString();
+    StringBuilder source = new StringBuilder(HEADER);
+    if (!packageName.isEmpty()) source.append("package ").append(packageName).append(";\n\n");
+    source.append("import android.os.Parcel;\n");
+    source.append("import flow.KeyRefs;\n\n");
+    source.append("/** Writes and reads {@link ").append(type).append("} for {@link ")
+        .append(parceler).append("}. */\n");
+    source.append("public final class ").append(codecSimpleName()).append(" {\n");
+    source.append("  public static final Class<?> TYPE = ").append(type).append(".class;\n\n");
+    source.append("  private ").append(codecSimpleName()).append("() {\n  }\n\n");
+
+    source.append("  public static void write(Parcel out, Object value, KeyRefs refs) {\n");
+    if (isEnum()) {
+      source.append("    out.writeString(((").append(type).append(") value).name());\n");
+    } else if (!fields.isEmpty()) {
+      source.append("    ").append(type).append(" key = (").append(type).append(") value;\n");
+      for (KeyField field : fields) {
+        source.append("    ").append(field.write("key." + field.name, parceler)).append('\n');
+      }
+    }
+    source.append("  }\n\n");
+
+    source.append("  public static Object read(Parcel in, KeyRefs refs) {\n");
+    if (isEnum()) {
+      source.append("    return ").append(type).append(".valueOf(in.readString());\n");
+    } else {
+      source.append("    return new ").append(type).append('(');
+      for (int i = 0; i < fields.size(); i++) {
+        source.append(i == 0 ? "\n        " : ",\n        ")
+            .append(fields.get(i).read(codecSimpleName(), parceler));
+      }
+      source.append(");\n");
+    }
+    source.append("  }\n");
+    source.append("}\n");
+    return source.toString();
+  }
+
+  static String parcelerSource(String parceler, Collection<KeyType> keys) {
+    int dot = parceler.lastIndexOf('.');
+    String packageName = dot < 0 ? "" : parceler.substring(0, dot);
+    String simpleName = parceler.substring(dot + 1);
+
+    StringBuilder source = new StringBuilder(HEADER);
+    if (!packageName.isEmpty()) source.append("package ").append(packageName).append(";\n\n");
+    source.append(""
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import flow.KeyMetadata;\n"
+        + "import flow.KeyRefs;\n"
+        + "import flow.StreamingKeyParceler;\n"
+        + "import java.util.HashMap;\n"
+        + "import java.util.Map;\n"
+        + "\n"
+        + "/**\n"
+        + " * Parcels the {@code @FlowKey} classes of this module. Each key is written as an\n"
+        + " * int tag followed by its fields.\n"
+        + " */\n");
+    source.append("public final class ").append(simpleName)
+        .append(" implements StreamingKeyParceler {\n");
+    source.append(""
+        + "  private static final int NULL = 0;\n"
+        + "  private static final int REF = 1;\n"
+        + "  private static final Map<Class<?>, Integer> TAGS = new HashMap<>();\n"
+        + "\n"
+        + "  static {\n");
+    for (KeyType key : keys) {
+      source.append("    TAGS.put(").append(key.codecName()).append(".TYPE, ").append(key.tag)
+          .append(");\n");
+    }
+    source.append("\n");
+    // Spares Flow from reading @NotPersistent reflectively.
+    for (KeyType key : keys) {
+      source.append("    KeyMetadata.PERSISTENT.register(").append(key.codecName())
+          .append(".TYPE, ").append(key.persistent).append(");\n");
+    }
+    source.append(""
+        + "  }\n"
+        + "\n"
+        + "  @Override public Parcelable toParcelable(Object key) {\n"
+        + "    return new ParceledKey(key);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override public Object toKey(Parcelable parcelable) {\n"
+        + "    return ((ParceledKey) parcelable).key;\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override public void writeKey(Parcel out, Object key, KeyRefs refs) {\n"
+        + "    write(out, key, refs);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override public Object readKey(Parcel in, KeyRefs refs) {\n"
+        + "    return read(in, refs);\n"
+        + "  }\n"
+        + "\n"
+        + "  public static void write(Parcel out, Object key, KeyRefs refs) {\n"
+        + "    if (key == null) {\n"
+        + "      out.writeInt(NULL);\n"
+        + "      return;\n"
+        + "    }\n"
+        + "    int ref = refs.indexOf(key);\n"
+        + "    if (ref >= 0) {\n"
+        + "      out.writeInt(REF);\n"
+        + "      out.writeInt(ref);\n"
+        + "      return;\n"
+        + "    }\n"
+        + "    Integer tag = TAGS.get(key.getClass());\n"
+        + "    // Enum constants with bodies are instances of anonymous subclasses.\n"
+        + "    if (tag == null && key instanceof Enum) {\n"
+        + "      tag = TAGS.get(((Enum<?>) key).getDeclaringClass());\n"
+        + "    }\n"
+        + "    if (tag == null) {\n"
+        + "      throw new IllegalArgumentException(\n"
+        + "          \"Not a @FlowKey: \" + key.getClass().getName());\n"
+        + "    }\n"
+        + "    out.writeInt(tag);\n"
+        + "    switch (tag) {\n");
+    for (KeyType key : keys) {
+      source.append("      case ").append(key.tag).append(":\n");
+      source.append("        ").append(key.codecName()).append(".write(out, key, refs);\n");
+      source.append("        break;\n");
+    }
+    source.append(""
+        + "      default:\n"
+        + "        throw new AssertionError(tag);\n"
+        + "    }\n"
+        + "    refs.add(key);\n"
+        + "  }\n"
+        + "\n"
+        + "  public static Object read(Parcel in, KeyRefs refs) {\n"
+        + "    int tag = in.readInt();\n"
+        + "    Object key;\n"
+        + "    switch (tag) {\n"
+        + "      case NULL:\n"
+        + "        return null;\n"
+        + "      case REF:\n"
+        + "        return refs.get(in.readInt());\n");
+    for (KeyType key : keys) {
+      source.append("      case ").append(key.tag).append(":\n");
+      source.append("        key = ").append(key.codecName()).append(".read(in, refs);\n");
+      source.append("        break;\n");
+    }
+    source.append(""
+        + "      default:\n"
+        + "        throw new IllegalArgumentException(\"Unknown @FlowKey tag \" + tag\n"
+        + "            + \", was the key changed since it was written?\");\n"
+        + "    }\n"
+        + "    refs.add(key);\n"
+        + "    return key;\n"
+        + "  }\n"
+        + "\n"
+        + "  public static void writeEnum(Parcel out, Enum<?> value) {\n"
+        + "    out.writeString(value == null ? null : value.name());\n"
+        + "  }\n"
+        + "\n"
+        + "  public static <E extends Enum<E>> E readEnum(Parcel in, Class<E> type) {\n"
+        + "    String name = in.readString();\n"
+        + "    return name == null ? null : Enum.valueOf(type, name);\n"
+        + "  }\n"
+        + "\n"
+        + "  public static final class ParceledKey implements Parcelable {\n"
+        + "    public static final Creator<ParceledKey> CREATOR = new Creator<ParceledKey>() {\n"
+        + "      @Override public ParceledKey createFromParcel(Parcel in) {\n"
+        + "        return new ParceledKey(read(in, new KeyRefs()));\n"
+        + "      }\n"
+        + "\n"
+        + "      @Override public ParceledKey[] newArray(int size) {\n"
+        + "        return new ParceledKey[size];\n"
+        + "      }\n"
+        + "    };\n"
+        + "\n"
+        + "    final Object key;\n"
+        + "\n"
+        + "    ParceledKey(Object key) {\n"
+        + "      this.key = key;\n"
+        + "    }\n"
+        + "\n"
+        + "    @Override public int describeContents() {\n"
+        + "      return 0;\n"
+        + "    }\n"
+        + "\n"
+        + "    @Override public void writeToParcel(Parcel out, int flags) {\n"
+        + "      write(out, key, new KeyRefs());\n"
+        + "    }\n"
+        + "  }\n"
+        + "}\n");
+    return source.toString();
+  }
+
+  private boolean isEnum() {
+    return element.getKind() == ElementKind.ENUM;
+  }
+
+  private String codecSimpleName() {
+    String simpleName = packageName.isEmpty() //
+        ? binaryName : binaryName.substring(packageName.length() + 1);
+    return simpleName.replace('$', '_') + "_FlowKeyCodec";
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.compiler;
+
+import java.util.Collection;
+import javax.lang.model.element.TypeElement;
+
+/** A key class annotated {@code @Layout}, and the source of its routing. */
+final class LayoutKey {
+  private static final String HEADER = "// Generated by flow-compiler. Do not modify!\n";
+
+  final TypeElement element;
+  final String binaryName;
+  final String packageName;
+  final int layout;
+
+  LayoutKey(TypeElement element, String binaryName, String packageName, int layout) {
+    this.element = element;
+    this.binaryName = binaryName;
+    this.packageName = packageName;
+    this.layout = layout;
+  }
+
+  String holderName() {
+    return packageName.isEmpty() ? holderSimpleName() : packageName + "." + holderSimpleName();
+  }
+
+  /** Exposes the key class, which may be package-private, to the table. */
+  String holderSource() {
+    String type = element.getQualifiedName().toString();
+    StringBuilder source = new StringBuilder(HEADER);
+    if (!packageName.isEmpty()) source.append("package ").append(packageName).append(";\n\n");
+    source.append("/** The layout of {@link ").append(type).append("}. */\n");
+    source.append("public final class ").append(holderSimpleName()).append(" {\n");
+    source.append("  public static final Class<?> TYPE = ").append(type).append(".class;\n");
+    source.append("  public static final int LAYOUT = ").append(hex(layout)).append(";\n\n");
+    source.append("  private ").append(holderSimpleName()).append("() {\n  }\n");
+    source.append("}\n");
+    return source.toString();
+  }
+
+  static String tableSource(String table, Collection<LayoutKey> keys) {
+    int dot = table.lastIndexOf('.');
+    String packageName = dot < 0 ? "" : table.substring(0, dot);
+    String simpleName = table.substring(dot + 1);
+
+    StringBuilder source = new StringBuilder(HEADER);
+    if (!packageName.isEmpty()) source.append("package ").append(packageName).append(";\n\n");
+    source.append(""
+        + "import flow.KeyLayouts;\n"
+        + "import java.util.HashMap;\n"
+        + "import java.util.Map;\n"
+        + "\n"
+        + "/** The layouts of the {@code @Layout} key classes of this module, by class. */\n");
+    source.append("public final class ").append(simpleName).append(" implements KeyLayouts {\n");
+    source.append("  private static final Map<Class<?>, Integer> LAYOUTS = new HashMap<>(")
+        .append(keys.size() * 4 / 3 + 1).append(");\n\n");
+    source.append("  static {\n");
+    for (LayoutKey key : keys) {
+      source.append("    LAYOUTS.put(").append(key.holderName()).append(".TYPE, ")
+          .append(key.holderName()).append(".LAYOUT);\n");
+    }
+    source.append(""
+        + "  }\n"
+        + "\n"
+        + "  @Override public int layoutFor(Object key) {\n"
+        + "    Class<?> keyClass = key.getClass();\n"
+        + "    Integer layout = LAYOUTS.get(keyClass);\n"
+        + "    // Enum constants with bodies are instances of anonymous subclasses.\n"
+        + "    if (layout == null && key instanceof Enum) {\n"
+        + "      layout = LAYOUTS.get(((Enum<?>) key).getDeclaringClass());\n"
+        + "    }\n"
+        + "    if (layout == null) {\n"
+        + "      throw new IllegalArgumentException(\"No @Layout for \" + keyClass.getName());\n"
+        + "    }\n"
+        + "    return layout;\n"
+        + "  }\n"
+        + "}\n");
+    return source.toString();
+  }
+
+  /** @return the innermost package enclosing those of all the keys, or "" if there is none */
+  static String sharedPackage(Collection<LayoutKey> keys) {
+    String shared = null;
+    for (LayoutKey key : keys) {
+      String packageName = key.packageName;
+      if (shared == null) {
+        shared = packageName;
+        continue;
+      }
+      while (!shared.isEmpty() && !packageName.equals(shared)
+          && !packageName.startsWith(shared + ".")) {
+        int dot = shared.lastIndexOf('.');
+        shared = dot < 0 ? "" : shared.substring(0, dot);
+      }
+    }
+    return shared == null ? "" : shared;
+  }
+
+  private String holderSimpleName() {
+    String simpleName = packageName.isEmpty() //
+        ? binaryName : binaryName.substring(packageName.length() + 1);
+    return simpleName.replace('$', '_') + "_FlowLayout";
+  }
+
+  private static String hex(int value) {
+    return "0x" + Integer.toHexString(value);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code KeyLayouts} table of the classes annotated {@code @Layout}, so that
+ * dispatchers find the layout of a key with one map lookup instead of testing its type against
+ * every screen of the app. Next to each key goes a holder of its class, which may be
+ * package-private.
+ * <p>
+ * The table is named by the {@value #OPTION_TABLE} option. It defaults to
+ * {@value #DEFAULT_TABLE_NAME} in the package that the annotated classes share, so that each
+ * module of an app gets a table of its own. Without a shared package, the option is required.
+ */
+@SupportedOptions(LayoutProcessor.OPTION_TABLE)
+public final class LayoutProcessor extends AbstractProcessor {
+  static final String OPTION_TABLE = "flow.keyLayouts";
+  static final String DEFAULT_TABLE_NAME = "GeneratedKeyLayouts";
+  private static final String LAYOUT = "flow.Layout";
+
+  private Elements elements;
+  private Messager messager;
+  private String tableName;
+  private final Map<String, LayoutKey> keys = new TreeMap<>();
+  private boolean tableWritten;
+
+  @Override public synchronized void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    elements = processingEnv.getElementUtils();
+    messager = processingEnv.getMessager();
+    String option = processingEnv.getOptions().get(OPTION_TABLE);
+    tableName = option == null || option.isEmpty() ? null : option;
+  }
+
+  @Override public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(LAYOUT);
+  }
+
+  @Override public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override public boolean process(Set<? extends TypeElement> annotations,
+      RoundEnvironment roundEnv) {
+    TypeElement layout = elements.getTypeElement(LAYOUT);
+    if (layout == null) return false;
+
+    List<LayoutKey> found = new ArrayList<>();
+    for (Element element : roundEnv.getElementsAnnotatedWith(layout)) {
+      LayoutKey key = parse((TypeElement) element, layout);
+      if (key != null) found.add(key);
+    }
+    if (found.isEmpty()) return false;
+    if (tableWritten) {
+      error(found.get(0).element,
+          "@Layout classes must not be generated by other annotation processors");
+      return false;
+    }
+
+    if (tableName == null) {
+      String packageName = LayoutKey.sharedPackage(found);
+      if (packageName.isEmpty()) {
+        error(found.get(0).element, "@Layout classes share no package for their table;"
+            + " name it with the " + OPTION_TABLE + " annotation processor option");
+        return false;
+      }
+      tableName = packageName + "." + DEFAULT_TABLE_NAME;
+    }
+
+    List<Element> origins = new ArrayList<>();
+    for (LayoutKey key : found) {
+      keys.put(key.binaryName, key);
+      write(key.holderName(), key.holderSource(), key.element);
+      origins.add(key.element);
+    }
+    write(tableName, LayoutKey.tableSource(tableName, keys.values()),
+        origins.toArray(new Element[origins.size()]));
+    tableWritten = true;
+    return false;
+  }
+
+  private LayoutKey parse(TypeElement type, TypeElement layout) {
+    if (type.getKind() != ElementKind.CLASS && type.getKind() != ElementKind.ENUM) {
+      error(type, "@Layout may only be applied to classes and enums");
+      return null;
+    }
+    if (type.getModifiers().contains(Modifier.PRIVATE)) {
+      error(type, "@Layout classes must not be private");
+      return null;
+    }
+    if (type.getNestingKind() == NestingKind.LOCAL
+        || type.getNestingKind() == NestingKind.ANONYMOUS) {
+      error(type, "@Layout classes must not be local or anonymous");
+      return null;
+    }
+
+    Integer value = null;
+    for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+      if (!mirror.getAnnotationType().asElement().equals(layout)) continue;
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+          : mirror.getElementValues().entrySet()) {
+        if (entry.getKey().getSimpleName().contentEquals("value")) {
+          value = (Integer) entry.getValue().getValue();
+        }
+      }
+    }
+    if (value == null) {
+      error(type, "@Layout needs a layout resource");
+      return null;
+    }
+    String binaryName = elements.getBinaryName(type).toString();
+    String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+    return new LayoutKey(type, binaryName, packageName, value);
+  }
+
+  private void write(String name, String source, Element... origins) {
+    try {
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(name, origins);
+      Writer writer = file.openWriter();
+      try {
+        writer.write(source);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      messager.printMessage(Diagnostic.Kind.ERROR, "Unable to write " + name + ": " + e);
+    }
+  }
+
+  private void error(Element element, String message) {
+    messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
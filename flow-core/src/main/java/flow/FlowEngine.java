@@ -0,0 +1,477 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * The navigation engine behind Flow, free of Android. It holds the history, queues navigation as
+ * traversals that a dispatcher shows one at a time, and sets up and tears down the services of the
+ * keys it shows. Flow adapts it to Activities; benchmarks and simulations can drive it as is, on
+ * a plain JVM.
+ *
+ * @param <D> the type of dispatcher that shows traversals
+ */
+abstract class FlowEngine<D> {
+  /** A traversal as the engine tracks it. */
+  interface Pending {
+    /** @return true if more navigation was requested since this traversal was dispatched */
+    boolean isSuperseded();
+  }
+
+  /** Sets up the services of keys as they are shown, and tears them down after. */
+  interface Scopes {
+    void setUp(Object key);
+
+    void tearDown(Object key);
+  }
+
+  private final Scopes scopes;
+  private History history;
+  @Nullable private D dispatcher;
+  private PendingTraversal pendingTraversal;
+  private final List<Object> tearDownKeys = new ArrayList<>();
+  private boolean redispatchOnResume = true;
+  /** The history each dispatcher last completed a traversal to. */
+  private final Map<D, History> acknowledged = new WeakHashMap<>();
+  /** True if the history has changed since traversals last went idle. */
+  private boolean changed;
+  /** Null to execute traversals at once. */
+  @Nullable private Executor executor;
+  private boolean scheduled;
+  private final Runnable runScheduled = new Runnable() {
+    @Override public void run() {
+      scheduled = false;
+      if (pendingTraversal != null && pendingTraversal.state == TraversalState.ENQUEUED
+          && dispatcher != null) {
+        executeCoalesced();
+      }
+    }
+  };
+
+  FlowEngine(@NonNull Scopes scopes, @NonNull History history) {
+    this.scopes = checkNotNull(scopes, "scopes");
+    this.history = checkNotNull(history, "history");
+  }
+
+  /**
+   * Shows a traversal with the given dispatcher, which must call back once it is done.
+   *
+   * @param origin null if this is a bootstrap traversal, which brings a new dispatcher up to date
+   * @param pending the traversal as the engine tracks it
+   */
+  abstract void dispatch(@NonNull D dispatcher, @Nullable History origin,
+      @NonNull History destination, @NonNull Direction direction, @NonNull Pending pending,
+      @NonNull TraversalCallback callback);
+
+  /**
+   * Called each time traversals go idle, once the keys no longer shown are torn down.
+   *
+   * @param historyChanged true if the history changed since traversals last went idle
+   */
+  void onIdle(boolean historyChanged) {
+  }
+
+  /** Sets up the services of a key about to be shown. */
+  void setUp(Object key) {
+    scopes.setUp(key);
+  }
+
+  @NonNull History getHistory() {
+    return history;
+  }
+
+  /** @return true if no traversal is dispatched or waiting to be */
+  boolean isIdle() {
+    return pendingTraversal == null;
+  }
+
+  /**
+   * If false, a dispatcher restored with {@link #setDispatcher} gets no bootstrap traversal when
+   * it already completed one to the current history.
+   */
+  void setRedispatchOnResume(boolean redispatchOnResume) {
+    this.redispatchOnResume = redispatchOnResume;
+  }
+
+  /**
+   * Sets where traversals execute: at once if null. Otherwise the navigation requested before the
+   * executor runs is dispatched as one traversal, except for bootstrap traversals.
+   */
+  void setExecutor(@Nullable Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the dispatcher, which may receive an immediate call to {@link #dispatch}. A traversal in
+   * progress with a previous dispatcher is not affected.
+   *
+   * @param restore true if the dispatcher was set before, and its keys' services are still set up
+   */
+  void setDispatcher(@NonNull D dispatcher, final boolean restore) {
+    this.dispatcher = checkNotNull(dispatcher, "dispatcher");
+
+    if (pendingTraversal == null || //
+        (pendingTraversal.state == TraversalState.DISPATCHED && pendingTraversal.next == null)) {
+      // Nothing is happening;
+      // OR, there is an outstanding callback and nothing will happen after it;
+      // So enqueue a bootstrap traversal, unless the dispatcher is already up to date.
+      if (restore && !redispatchOnResume && pendingTraversal == null
+          && acknowledged.get(dispatcher) == history) {
+        return;
+      }
+      move(new PendingTraversal() {
+        @Override void doExecute() {
+          bootstrap(history, restore);
+        }
+
+        @Override boolean isBootstrap() {
+          return true;
+        }
+      });
+      return;
+    }
+
+    if (pendingTraversal.state == TraversalState.ENQUEUED) {
+      // A traversal was enqueued while we had no dispatcher, run it now.
+      if (executor != null) {
+        executeCoalesced();
+      } else {
+        pendingTraversal.execute();
+      }
+      return;
+    }
+
+    if (pendingTraversal.state != TraversalState.DISPATCHED) {
+      throw new AssertionError("Hanging traversal in unexpected state " + pendingTraversal.state);
+    }
+  }
+
+  /**
+   * Removes the dispatcher, if it is the current one. No further traversals execute until a new
+   * dispatcher is set.
+   */
+  void removeDispatcher(@NonNull D dispatcher) {
+    // This mechanism protects against out of order calls to this method and setDispatcher
+    // (e.g. if an outgoing activity is paused after an incoming one resumes).
+    if (this.dispatcher == checkNotNull(dispatcher, "dispatcher")) this.dispatcher = null;
+  }
+
+  /** Replaces the history with the one given and dispatches in the given direction. */
+  void setHistory(@NonNull final History history, @NonNull final Direction direction) {
+    move(new PendingTraversal() {
+      @Override void doExecute() {
+        dispatch(preserveEquivalentPrefix(getHistory(), history), direction);
+      }
+    });
+  }
+
+  /**
+   * Brings the given key to the top: dispatched {@link Direction#REPLACE} if it is already there,
+   * {@link Direction#BACKWARD} popping back to it if it is further down, else pushed
+   * {@link Direction#FORWARD}.
+   */
+  void set(@NonNull final Object newTopKey) {
+    move(new PendingTraversal() {
+      @Override void doExecute() {
+        if (newTopKey.equals(history.top())) {
+          dispatch(history, Direction.REPLACE);
+          return;
+        }
+
+        History.Builder builder = history.buildUpon();
+        int count = 0;
+        // Search backward to see if we already have newTop on the stack
+        Object preservedInstance = null;
+        for (Object entry : history.framesFromBottom()) {
+          // If we find newTop on the stack, pop back to it.
+          if (entry.equals(newTopKey)) {
+            for (int i = 0; i < history.size() - count; i++) {
+              preservedInstance = builder.pop();
+            }
+            break;
+          } else {
+            count++;
+          }
+        }
+
+        History newHistory;
+        if (preservedInstance != null) {
+          // newTop was on the history. Put the preserved instance back on and dispatch.
+          builder.push(preservedInstance);
+          newHistory = builder.build();
+          dispatch(newHistory, Direction.BACKWARD);
+        } else {
+          // newTop was not on the history. Push it on and dispatch.
+          builder.push(newTopKey);
+          newHistory = builder.build();
+          dispatch(newHistory, Direction.FORWARD);
+        }
+      }
+    });
+  }
+
+  /** Goes back one key. @return false if going back is not possible. */
+  boolean goBack() {
+    boolean canGoBack = history.size() > 1 || (pendingTraversal != null
+        && pendingTraversal.state != TraversalState.FINISHED);
+    if (!canGoBack) return false;
+
+    move(new PendingTraversal() {
+      @Override void doExecute() {
+        if (history.size() <= 1) {
+          // The history shrank while this op was pending. It happens, let's
+          // no-op. See lengthy discussions:
+          // https://github.com/square/flow/issues/195
+          // https://github.com/square/flow/pull/197
+          return;
+        }
+
+        History.Builder builder = history.buildUpon();
+        builder.pop();
+        final History newHistory = builder.build();
+        dispatch(newHistory, Direction.BACKWARD);
+      }
+    });
+    return true;
+  }
+
+  private void move(PendingTraversal pendingTraversal) {
+    if (this.pendingTraversal == null) {
+      this.pendingTraversal = pendingTraversal;
+      // If there is no dispatcher wait until one shows up before executing.
+      if (dispatcher != null) executeOrPost();
+    } else {
+      this.pendingTraversal.enqueue(pendingTraversal);
+    }
+  }
+
+  /** Executes the pending traversal as the executor has it. */
+  private void executeOrPost() {
+    if (executor == null || pendingTraversal.isBootstrap()) {
+      pendingTraversal.execute();
+    } else if (!scheduled) {
+      scheduled = true;
+      executor.execute(runScheduled);
+    }
+  }
+
+  /** Executes the pending traversal, together with the navigation queued after it. */
+  private void executeCoalesced() {
+    final PendingTraversal first = pendingTraversal;
+    PendingTraversal rest = first;
+    while (rest != null && !rest.isBootstrap()) {
+      rest = rest.next;
+    }
+    if (first == rest || first.next == rest) {
+      first.execute();
+      return;
+    }
+
+    final PendingTraversal stop = rest;
+    pendingTraversal = new PendingTraversal() {
+      @Override void doExecute() {
+        History start = history;
+        History end = null;
+        try {
+          for (PendingTraversal each = first; each != stop; each = each.next) {
+            each.planning = true;
+            each.doExecute();
+            if (each.nextHistory != null) history = end = each.nextHistory;
+          }
+        } finally {
+          history = start;
+        }
+        if (end == null) {
+          onTraversalCompleted();
+        } else {
+          // The steps in between are never shown, so animate the net change.
+          dispatch(end, netDirection(start, end));
+        }
+      }
+    };
+    pendingTraversal.next = stop;
+    pendingTraversal.execute();
+  }
+
+  /**
+   * @return {@link Direction#FORWARD} if the destination extends the origin,
+   * {@link Direction#BACKWARD} if it is a prefix of the origin, else {@link Direction#REPLACE}
+   */
+  private static Direction netDirection(History origin, History destination) {
+    List<Object> from = origin.asList();
+    List<Object> to = destination.asList();
+    if (to.size() > from.size() && to.subList(0, from.size()).equals(from)) {
+      return Direction.FORWARD;
+    }
+    if (to.size() < from.size() && from.subList(0, to.size()).equals(to)) {
+      return Direction.BACKWARD;
+    }
+    return Direction.REPLACE;
+  }
+
+  private static History preserveEquivalentPrefix(History current, History proposed) {
+    Iterator<Object> oldIt = current.framesFromBottom().iterator();
+    Iterator<Object> newIt = proposed.framesFromBottom().iterator();
+
+    History.Builder preserving = current.buildUpon().clear();
+
+    while (newIt.hasNext()) {
+      Object newEntry = newIt.next();
+      if (!oldIt.hasNext()) {
+        preserving.push(newEntry);
+        break;
+      }
+      Object oldEntry = oldIt.next();
+      if (oldEntry.equals(newEntry)) {
+        preserving.push(oldEntry);
+      } else {
+        preserving.push(newEntry);
+        break;
+      }
+    }
+
+    while (newIt.hasNext()) {
+      preserving.push(newIt.next());
+    }
+    return preserving.build();
+  }
+
+  private enum TraversalState {
+    /** {@link PendingTraversal#execute} has not been called. */
+    ENQUEUED,
+
+    /**
+     * {@link PendingTraversal#execute} was called, waiting for {@link
+     * PendingTraversal#onTraversalCompleted}.
+     */
+    DISPATCHED,
+
+    /**
+     * {@link PendingTraversal#onTraversalCompleted} was called.
+     */
+    FINISHED
+  }
+
+  private abstract class PendingTraversal implements TraversalCallback, Pending {
+
+    TraversalState state = TraversalState.ENQUEUED;
+    PendingTraversal next;
+    History nextHistory;
+    D dispatchedTo;
+    /** If true, {@link #dispatch} only records where this would go, to be coalesced. */
+    boolean planning;
+
+    void enqueue(PendingTraversal pendingTraversal) {
+      if (this.next == null) {
+        this.next = pendingTraversal;
+      } else {
+        this.next.enqueue(pendingTraversal);
+      }
+    }
+
+    @Override public boolean isSuperseded() {
+      return next != null;
+    }
+
+    @Override public void onTraversalCompleted() {
+      if (state != TraversalState.DISPATCHED) {
+        throw new IllegalStateException(
+            state == TraversalState.FINISHED ? "onComplete already called for this transition"
+                : "transition not yet dispatched!");
+      }
+      // Is not set by noop and bootstrap transitions.
+      if (nextHistory != null) {
+        tearDownKeys.add(history.top());
+        history = nextHistory;
+        changed = true;
+      }
+      // Is not set by noop transitions.
+      if (dispatchedTo != null) acknowledged.put(dispatchedTo, history);
+      state = TraversalState.FINISHED;
+      pendingTraversal = next;
+
+      if (pendingTraversal == null) {
+        final Iterator<Object> it = tearDownKeys.iterator();
+        while (it.hasNext()) {
+          scopes.tearDown(it.next());
+          it.remove();
+        }
+        boolean historyChanged = changed;
+        changed = false;
+        onIdle(historyChanged);
+      } else if (dispatcher != null) {
+        executeOrPost();
+      }
+    }
+
+    void bootstrap(History history, boolean restore) {
+      if (dispatcher == null) {
+        throw new AssertionError("Bad doExecute method allowed dispatcher to be cleared");
+      }
+      if (!restore) {
+        setUp(history.top());
+      }
+      callDispatcher(null, history, Direction.REPLACE);
+    }
+
+    void dispatch(History nextHistory, Direction direction) {
+      this.nextHistory = checkNotNull(nextHistory, "nextHistory");
+      if (planning) return;
+      if (dispatcher == null) {
+        throw new AssertionError("Bad doExecute method allowed dispatcher to be cleared");
+      }
+      setUp(nextHistory.top());
+      callDispatcher(getHistory(), nextHistory, direction);
+    }
+
+    private void callDispatcher(@Nullable History origin, History destination,
+        Direction direction) {
+      dispatchedTo = dispatcher;
+      //noinspection ConstantConditions
+      FlowEngine.this.dispatch(dispatcher, origin, destination, direction, this, this);
+    }
+
+    final void execute() {
+      if (state != TraversalState.ENQUEUED) throw new AssertionError("unexpected state " + state);
+      if (dispatcher == null) throw new AssertionError("Caller must ensure that dispatcher is set");
+
+      state = TraversalState.DISPATCHED;
+      doExecute();
+    }
+
+    /**
+     * Must be synchronous and end with a call to {@link #dispatch} or {@link
+     * #onTraversalCompleted()}.
+     */
+    abstract void doExecute();
+
+    /** Bootstrap traversals bring a new dispatcher up to date, and are never coalesced. */
+    boolean isBootstrap() {
+      return false;
+    }
+  }
+}
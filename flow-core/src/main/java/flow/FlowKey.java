@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Applied to a key class, has the flow-compiler annotation processor include it in the
+ * {@code KeyParceler} it generates, {@code flow.GeneratedKeyParceler} by default. Keys are
+ * written field by field behind an int tag, with no reflection and no class names.
+ * <p>
+ * The key's instance fields are its state. They must not be private, and the key must have a
+ * non-private constructor taking them in declaration order. Fields may be primitives, Strings,
+ * enums, {@code Parcelable}s or other {@code @FlowKey} types; mark fields that should
+ * not be persisted {@code transient}. Enum keys are supported too, and are written by name.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface FlowKey {
+}
@@ -31,7 +31,7 @@ import static flow.Preconditions.checkArgument;
 import static java.util.Collections.unmodifiableList;
 
 /**
- * Describes the history of a {@link Flow} at a specific point in time.
+ * Describes the history of a {@code Flow} at a specific point in time.
  *
  * <p><em>Note: use of this class as an {@link Iterable} is deprecated. Use {@link
  * #framesFromTop()}
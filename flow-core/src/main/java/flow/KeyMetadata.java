@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Facts about key classes, such as whether they are {@link NotPersistent}. Each is looked up by
+ * reflection at most once per class and cached, or registered ahead of time so that it is never
+ * looked up at all; flow-compiler registers the attributes of {@link FlowKey} classes this way.
+ * <p>
+ * Define other attributes, e.g. a cache policy read from an annotation of your own, by extending
+ * {@link Attribute}.
+ */
+public final class KeyMetadata {
+  /** False for key classes annotated {@link NotPersistent}. */
+  public static final Attribute<Boolean> PERSISTENT = new Attribute<Boolean>() {
+    @NonNull @Override protected Boolean compute(@NonNull Class<?> keyClass) {
+      return !keyClass.isAnnotationPresent(NotPersistent.class);
+    }
+  };
+
+  /** @return false if the key's class is annotated {@link NotPersistent}. */
+  public static boolean isPersistent(@NonNull Object key) {
+    return PERSISTENT.get(key);
+  }
+
+  /** A value computed from a key class. Instances should be constants. */
+  public abstract static class Attribute<T> {
+    private final ConcurrentHashMap<Class<?>, T> values = new ConcurrentHashMap<>();
+
+    /**
+     * @return the value of this attribute for the class of the given key. For an enum constant,
+     * that is its enum class, even if the constant has a body of its own.
+     */
+    @NonNull public final T get(@NonNull Object key) {
+      Class<?> keyClass = key instanceof Enum //
+          ? ((Enum<?>) key).getDeclaringClass() : key.getClass();
+      T value = values.get(keyClass);
+      if (value == null) {
+        value = checkNotNull(compute(keyClass), "%s computed null for %s", this, keyClass);
+        T raced = values.putIfAbsent(keyClass, value);
+        if (raced != null) value = raced;
+      }
+      return value;
+    }
+
+    /** Sets the value of this attribute for the given class, so that it is never computed. */
+    public final void register(@NonNull Class<?> keyClass, @NonNull T value) {
+      values.put(checkNotNull(keyClass, "keyClass"), checkNotNull(value, "value"));
+    }
+
+    /**
+     * Computes the value of this attribute for the given class, e.g. by reading its annotations.
+     * Called at most once per class, unless concurrent lookups race.
+     */
+    @NonNull protected abstract T compute(@NonNull Class<?> keyClass);
+  }
+
+  private KeyMetadata() {
+    throw new AssertionError();
+  }
+}
@@ -8,10 +8,19 @@ import android.support.annotation.NonNull;
  */
 class NotPersistentHistoryFilter implements HistoryFilter {
   @NonNull @Override public History scrubHistory(@NonNull History history) {
+    boolean allPersistent = true;
+    for (Object key : history.framesFromBottom()) {
+      if (!KeyMetadata.isPersistent(key)) {
+        allPersistent = false;
+        break;
+      }
+    }
+    if (allPersistent) return history;
+
     History.Builder builder = History.emptyBuilder();
 
     for (Object key : history.framesFromBottom()) {
-      if (!key.getClass().isAnnotationPresent(NotPersistent.class)) {
+      if (KeyMetadata.isPersistent(key)) {
         builder.push(key);
       }
     }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static flow.Services.ROOT_KEY;
+
+/**
+ * The {@link Services} of each key in use, counted by their uses. Owned by one Activity's
+ * KeyManager, or by a FlowHost and shared by the Activities attached to it.
+ * <p>
+ * Scopes no longer in use are torn down, unless some are retained: then the most recently
+ * released are kept, up to the given number, for when an identical key is next set up.
+ */
+final class ServiceScopes implements FlowEngine.Scopes {
+  /** Told when the services of a scope are torn down, to drop whatever was kept for them. */
+  interface Listener {
+    void onTornDown(Services services);
+  }
+
+  private final List<ServicesFactory> servicesFactories = new ArrayList<>();
+  private final int retainUnused;
+  private final List<Listener> listeners = new ArrayList<>();
+  private Map<Object, ManagedServices> managedServices = new LinkedHashMap<>();
+  /** Scopes no longer in use, least recently released first. */
+  private Map<Object, ManagedServices> unused = new LinkedHashMap<>();
+
+  ServiceScopes(List<ServicesFactory> servicesFactories, int retainUnused) {
+    this.servicesFactories.addAll(servicesFactories);
+    this.retainUnused = retainUnused;
+    managedServices.put(ROOT_KEY, new ManagedServices(Services.ROOT_SERVICES));
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  Services findServices(Object key) {
+    final ManagedServices managed = managedServices.get(key);
+    if (managed == null) {
+      throw new IllegalStateException("No services currently exists for key " + key);
+    }
+    return managed.services;
+  }
+
+  @Override public void setUp(Object key) {
+    Services parent = managedServices.get(ROOT_KEY).services;
+    if (key instanceof MultiKey) {
+      for (Object part : ((MultiKey) key).getKeys()) {
+        setUp(part);
+      }
+      ensureNode(parent, key).uses++;
+    } else if (key instanceof TreeKey) {
+      TreeKey treeKey = (TreeKey) key;
+      final Object parentKey = treeKey.getParentKey();
+      setUp(parentKey);
+      parent = managedServices.get(parentKey).services;
+      ensureNode(parent, key).uses++;
+    } else {
+      ensureNode(parent, key).uses++;
+    }
+  }
+
+  @Override public void tearDown(Object key) {
+    if (key instanceof MultiKey) {
+      decrementAndMaybeRemoveKey(key);
+      final List<Object> parts = ((MultiKey) key).getKeys();
+      final int count = parts.size();
+      for (int i = count - 1; i >= 0; i--) {
+        tearDown(parts.get(i));
+      }
+    } else if (key instanceof TreeKey) {
+      decrementAndMaybeRemoveKey(key);
+      TreeKey treeKey = (TreeKey) key;
+      tearDown(treeKey.getParentKey());
+    } else {
+      decrementAndMaybeRemoveKey(key);
+    }
+  }
+
+  /**
+   * Lets the ServicesFactories release memory from every live service scope, and tears down the
+   * retained scopes no longer in use.
+   */
+  void trimServices(int level) {
+    int count = servicesFactories.size();
+    for (Map.Entry<Object, ManagedServices> entry : managedServices.entrySet()) {
+      if (entry.getKey() == ROOT_KEY) continue;
+      for (int i = 0; i < count; i++) {
+        servicesFactories.get(i).onTrimMemory(entry.getValue().services, level);
+      }
+    }
+    releaseUnused();
+  }
+
+  /** Tears down every retained scope that is no longer in use. */
+  void releaseUnused() {
+    evictUnused(0);
+  }
+
+  /** @return the estimated size of each scope in use, by key. */
+  Map<Object, Long> estimateSizes() {
+    Map<Object, Long> servicesBytes = new LinkedHashMap<>(managedServices.size());
+    int count = servicesFactories.size();
+    for (Map.Entry<Object, ManagedServices> entry : managedServices.entrySet()) {
+      if (entry.getKey() == ROOT_KEY) continue;
+      long size = 0;
+      for (int i = 0; i < count; i++) {
+        size += servicesFactories.get(i).estimateSize(entry.getValue().services);
+      }
+      servicesBytes.put(entry.getKey(), size);
+    }
+    return servicesBytes;
+  }
+
+  /** Rebuilds internal maps, which never shrink on their own, to fit their current contents. */
+  void compact() {
+    managedServices = new LinkedHashMap<>(managedServices);
+    unused = new LinkedHashMap<>(unused);
+  }
+
+  int retainedCount() {
+    return unused.size();
+  }
+
+  @NonNull private ManagedServices ensureNode(@Nullable Services parent, Object key) {
+    ManagedServices node = managedServices.get(key);
+    if (node == null) {
+      node = unused.remove(key);
+    }
+    if (node == null) {
+      // Bind the local key as a service.
+      @SuppressWarnings("ConstantConditions") //
+      Services.Binder binder = parent.extend(key);
+      // Add any services from the factories
+      int count = servicesFactories.size();
+      for (int i = 0; i < count; i++) {
+        servicesFactories.get(i).bindServices(binder);
+      }
+      node = new ManagedServices(binder.build());
+    }
+    managedServices.put(key, node);
+    return node;
+  }
+
+  private boolean decrementAndMaybeRemoveKey(Object key) {
+    ManagedServices node = managedServices.get(key);
+    node.uses--;
+    if (key != ROOT_KEY && node.uses == 0) {
+      managedServices.remove(key);
+      if (retainUnused > 0) {
+        unused.put(key, node);
+        evictUnused(retainUnused);
+      } else {
+        tearDownServices(node);
+      }
+      return true;
+    }
+    if (node.uses < 0) {
+      throw new IllegalStateException("Over-decremented uses of key " + key);
+    }
+    return false;
+  }
+
+  private void evictUnused(int max) {
+    Iterator<ManagedServices> eldest = unused.values().iterator();
+    while (unused.size() > max) {
+      ManagedServices node = eldest.next();
+      eldest.remove();
+      tearDownServices(node);
+    }
+  }
+
+  private void tearDownServices(ManagedServices node) {
+    int count = servicesFactories.size();
+    for (int i = count - 1; i >= 0; i--) {
+      servicesFactories.get(i).tearDownServices(node.services);
+    }
+    for (int i = listeners.size() - 1; i >= 0; i--) {
+      listeners.get(i).onTornDown(node.services);
+    }
+  }
+
+  private static final class ManagedServices {
+    final Services services;
+    /** Includes uses as a leaf and as a direct parent. */
+    int uses = 0;
+
+    private ManagedServices(Services services) {
+      this.services = services;
+    }
+  }
+}
@@ -25,8 +25,13 @@ import java.util.Map;
 import static flow.Preconditions.checkNotNull;
 
 public class Services {
+  static final Object ROOT_KEY = new Object() {
+    @Override public String toString() {
+      return Services.class.getName() + ".ROOT_KEY";
+    }
+  };
   static final Services ROOT_SERVICES =
-      new Services(Flow.ROOT_KEY, null, Collections.<String, Object>emptyMap());
+      new Services(ROOT_KEY, null, Collections.<String, Object>emptyMap());
 
   public static final class Binder extends Services {
     private final Map<String, Object> services = new LinkedHashMap<>();
@@ -73,6 +78,22 @@ public class Services {
     return (T) this.key;
   }
 
+  /**
+   * @return true if the given Services are these, or have equal keys and bind the same service
+   * instances all the way to the root, so that either can stand in for the other
+   */
+  boolean isEquivalentTo(@NonNull Services other) {
+    if (this == other) return true;
+    if (!key.equals(other.key) || localServices.size() != other.localServices.size()) {
+      return false;
+    }
+    for (Map.Entry<String, Object> entry : localServices.entrySet()) {
+      if (other.localServices.get(entry.getKey()) != entry.getValue()) return false;
+    }
+    if (delegate == null || other.delegate == null) return delegate == other.delegate;
+    return delegate.isEquivalentTo(other.delegate);
+  }
+
   @NonNull Binder extend(@NonNull Object key) {
     return new Binder(this, key);
   }
@@ -31,4 +31,23 @@ public abstract class ServicesFactory {
    */
   public void tearDownServices(@NonNull Services services) {
   }
+
+  /**
+   * Called when the app is asked to trim memory, if the installed {@code TrimMemoryPolicy} calls
+   * for {@code TRIM_SERVICES}. Release any caches held by the given services that can be rebuilt
+   * on demand.
+   *
+   * @param level as given to {@code ComponentCallbacks2.onTrimMemory}
+   */
+  public void onTrimMemory(@NonNull Services services, int level) {
+  }
+
+  /**
+   * Optional hook for memory accounting by {@code Flow.getMemoryReport()}. Returns an estimate, in
+   * bytes, of the heap held by the services this factory bound for the given instance. The
+   * default implementation returns 0.
+   */
+  public long estimateSize(@NonNull Services services) {
+    return 0;
+  }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlowEngineTest {
+  static class RecordingFactory extends ServicesFactory {
+    final List<Object> setUp = new ArrayList<>();
+    final List<Object> tornDown = new ArrayList<>();
+
+    @Override public void bindServices(@NonNull Services.Binder services) {
+      setUp.add(services.getKey());
+    }
+
+    @Override public void tearDownServices(@NonNull Services services) {
+      tornDown.add(services.getKey());
+    }
+  }
+
+  /** Records each traversal, and completes it only when told to. */
+  static class TestEngine extends FlowEngine<String> {
+    final List<String> dispatched = new ArrayList<>();
+    FlowEngine.Pending pending;
+    TraversalCallback callback;
+    int idle;
+
+    TestEngine(Scopes scopes, History history) {
+      super(scopes, history);
+    }
+
+    @Override void dispatch(@NonNull String dispatcher, @Nullable History origin,
+        @NonNull History destination, @NonNull Direction direction, @NonNull Pending pending,
+        @NonNull TraversalCallback callback) {
+      dispatched.add(destination.<TestKey>top().name + " " + direction);
+      this.pending = pending;
+      this.callback = callback;
+    }
+
+    @Override void onIdle(boolean historyChanged) {
+      if (historyChanged) idle++;
+    }
+
+    void complete() {
+      TraversalCallback callback = this.callback;
+      this.callback = null;
+      callback.onTraversalCompleted();
+    }
+  }
+
+  /** Runs posted work only when told to. */
+  static class ManualExecutor implements Executor {
+    final List<Runnable> posted = new ArrayList<>();
+
+    @Override public void execute(@NonNull Runnable work) {
+      posted.add(work);
+    }
+
+    void run() {
+      List<Runnable> work = new ArrayList<>(posted);
+      posted.clear();
+      for (Runnable each : work) {
+        each.run();
+      }
+    }
+  }
+
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final TestKey charlie = new TestKey("Charlie");
+  private final RecordingFactory factory = new RecordingFactory();
+  private final TestEngine engine = new TestEngine(
+      new ServiceScopes(Collections.<ServicesFactory>singletonList(factory), 0),
+      History.single(able));
+
+  @Test public void newDispatcherIsBroughtUpToDate() {
+    engine.setDispatcher("dispatcher", false);
+
+    assertThat(engine.dispatched).containsExactly("Able REPLACE");
+    assertThat(factory.setUp).containsExactly(able);
+  }
+
+  @Test public void setPushesNewKeysAndPopsBackToOldOnes() {
+    engine.setDispatcher("dispatcher", false);
+    engine.complete();
+
+    engine.set(baker);
+    engine.complete();
+    engine.set(charlie);
+    engine.complete();
+    engine.set(able);
+    engine.complete();
+
+    assertThat(engine.dispatched) //
+        .containsExactly("Able REPLACE", "Baker FORWARD", "Charlie FORWARD", "Able BACKWARD");
+    assertThat(engine.getHistory().asList()).containsExactly(able);
+  }
+
+  @Test public void navigationWaitsForTraversalInProgress() {
+    engine.setDispatcher("dispatcher", false);
+    engine.complete();
+    engine.set(baker);
+
+    assertThat(engine.goBack()).isTrue();
+    assertThat(engine.pending.isSuperseded()).isTrue();
+    assertThat(engine.dispatched).containsExactly("Able REPLACE", "Baker FORWARD");
+
+    engine.complete();
+    assertThat(engine.dispatched).containsExactly("Able REPLACE", "Baker FORWARD", "Able BACKWARD");
+    engine.complete();
+    assertThat(engine.isIdle()).isTrue();
+    assertThat(engine.goBack()).isFalse();
+  }
+
+  @Test public void navigationWaitsForDispatcher() {
+    engine.set(baker);
+    assertThat(engine.dispatched).isEmpty();
+
+    engine.setDispatcher("dispatcher", false);
+    assertThat(engine.dispatched).containsExactly("Baker FORWARD");
+  }
+
+  @Test public void scopesOfKeysNoLongerShownAreTornDownWhenIdle() {
+    engine.setDispatcher("dispatcher", false);
+    engine.complete();
+    engine.set(baker);
+    engine.set(charlie);
+    engine.complete();
+
+    assertThat(factory.setUp).containsExactly(able, baker, charlie);
+    assertThat(factory.tornDown).isEmpty();
+    engine.complete();
+
+    assertThat(factory.tornDown).containsExactly(able, baker);
+    assertThat(engine.idle).isEqualTo(1);
+  }
+
+  @Test public void navigationBeforeExecutorRunsIsCoalesced() {
+    ManualExecutor executor = new ManualExecutor();
+    engine.setExecutor(executor);
+    engine.setDispatcher("dispatcher", false);
+    engine.complete();
+
+    engine.set(baker);
+    engine.set(charlie);
+    assertThat(engine.dispatched).containsExactly("Able REPLACE");
+
+    executor.run();
+    assertThat(engine.dispatched).containsExactly("Able REPLACE", "Charlie FORWARD");
+    engine.complete();
+    assertThat(engine.getHistory().asList()).containsExactly(able, baker, charlie);
+  }
+
+  @Test public void restoredDispatcherIsNotBootstrappedWhenUpToDate() {
+    engine.setRedispatchOnResume(false);
+    engine.setDispatcher("dispatcher", false);
+    engine.complete();
+    engine.removeDispatcher("dispatcher");
+
+    engine.setDispatcher("dispatcher", true);
+    assertThat(engine.dispatched).containsExactly("Able REPLACE");
+    assertThat(engine.isIdle()).isTrue();
+  }
+
+  @Test public void setHistoryKeepsEquivalentKeysOfTheCurrentHistory() {
+    engine.setDispatcher("dispatcher", false);
+    engine.complete();
+
+    engine.setHistory(History.emptyBuilder().pushAll(asList(new TestKey("Able"), baker)).build(),
+        Direction.FORWARD);
+    engine.complete();
+
+    assertThat(engine.getHistory().asList().get(0)).isSameAs(able);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyMetadataTest {
+  @NotPersistent static final class Transient {
+  }
+
+  static final class Registered {
+  }
+
+  @NotPersistent enum Dialog {
+    CONFIRM {
+      @Override public String toString() {
+        return "confirm";
+      }
+    }
+  }
+
+  @Test public void readsNotPersistent() {
+    assertThat(KeyMetadata.isPersistent(new TestKey("Able"))).isTrue();
+    assertThat(KeyMetadata.isPersistent(new Transient())).isFalse();
+  }
+
+  @Test public void readsEnumClassOfConstantsWithBodies() {
+    assertThat(Dialog.CONFIRM.getClass()).isNotEqualTo(Dialog.class);
+    assertThat(KeyMetadata.isPersistent(Dialog.CONFIRM)).isFalse();
+  }
+
+  @Test public void registeredValuesAreNotComputed() {
+    final List<Class<?>> computed = new ArrayList<>();
+    KeyMetadata.Attribute<String> policy = new KeyMetadata.Attribute<String>() {
+      @NonNull @Override protected String compute(@NonNull Class<?> keyClass) {
+        computed.add(keyClass);
+        return "computed";
+      }
+    };
+    policy.register(Registered.class, "registered");
+
+    assertThat(policy.get(new Registered())).isEqualTo("registered");
+    assertThat(policy.get(new TestKey("Able"))).isEqualTo("computed");
+    assertThat(policy.get(new TestKey("Baker"))).isEqualTo("computed");
+    assertThat(computed).containsExactly(TestKey.class);
+  }
+}
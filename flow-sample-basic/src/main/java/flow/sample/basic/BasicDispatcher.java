@@ -25,12 +25,14 @@ import android.view.View;
 import android.view.ViewGroup;
 import flow.Dispatcher;
 import flow.Flow;
+import flow.KeyLayouts;
 import flow.Traversal;
 import flow.TraversalCallback;
 
 final class BasicDispatcher implements Dispatcher {
 
   private final Activity activity;
+  private final KeyLayouts layouts = new GeneratedKeyLayouts();
 
   BasicDispatcher(Activity activity) {
     this.activity = activity;
@@ -62,14 +64,8 @@ final class BasicDispatcher implements Dispatcher {
       frame.removeAllViews();
     }
 
-    @LayoutRes final int layout;
-    if (destKey instanceof HelloScreen) {
-      layout = R.layout.hello_screen;
-    } else if (destKey instanceof WelcomeScreen) {
-      layout = R.layout.welcome_screen;
-    } else {
-      throw new AssertionError("Unrecognized screen " + destKey);
-    }
+    // Generated from the @Layout annotations of the screens.
+    @LayoutRes final int layout = layouts.layoutFor(destKey);
 
     View incomingView = LayoutInflater.from(traversal.createContext(destKey, activity)) //
         .inflate(layout, frame, false);
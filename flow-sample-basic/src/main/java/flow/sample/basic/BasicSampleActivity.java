@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
 import flow.Flow;
+import flow.GeneratedKeyParceler;
 
 public class BasicSampleActivity extends Activity {
 
@@ -32,7 +33,7 @@ public class BasicSampleActivity extends Activity {
     baseContext = Flow.configure(baseContext, this) //
         .dispatcher(new BasicDispatcher(this)) //
         .defaultKey(new WelcomeScreen()) //
-        .keyParceler(new BasicKeyParceler()) //
+        .keyParceler(new GeneratedKeyParceler()) //
         .install();
     super.attachBaseContext(baseContext);
   }
@@ -16,38 +16,18 @@
 
 package flow.sample.basic;
 
-import android.os.Parcel;
-import android.os.Parcelable;
+import flow.FlowKey;
+import flow.Layout;
 
-final class HelloScreen implements Parcelable {
+@FlowKey
+@Layout(R.layout.hello_screen)
+final class HelloScreen {
   final String name;
 
   HelloScreen(String name) {
     this.name = name;
   }
 
-  protected HelloScreen(Parcel in) {
-    name = in.readString();
-  }
-
-  public static final Creator<HelloScreen> CREATOR = new Creator<HelloScreen>() {
-    @Override public HelloScreen createFromParcel(Parcel in) {
-      return new HelloScreen(in.readString());
-    }
-
-    @Override public HelloScreen[] newArray(int size) {
-      return new HelloScreen[size];
-    }
-  };
-
-  @Override public int describeContents() {
-    return 0;
-  }
-
-  @Override public void writeToParcel(Parcel dest, int flags) {
-    dest.writeString(name);
-  }
-
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
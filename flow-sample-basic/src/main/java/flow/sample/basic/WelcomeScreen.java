@@ -16,27 +16,12 @@
 
 package flow.sample.basic;
 
-import android.os.Parcel;
-import android.os.Parcelable;
-
-final class WelcomeScreen implements Parcelable {
-  @Override public void writeToParcel(Parcel dest, int flags) {
-  }
-
-  @Override public int describeContents() {
-    return 0;
-  }
-
-  public static final Creator<WelcomeScreen> CREATOR = new Creator<WelcomeScreen>() {
-    @Override public WelcomeScreen createFromParcel(Parcel in) {
-      return new WelcomeScreen();
-    }
-
-    @Override public WelcomeScreen[] newArray(int size) {
-      return new WelcomeScreen[size];
-    }
-  };
+import flow.FlowKey;
+import flow.Layout;
 
+@FlowKey
+@Layout(R.layout.welcome_screen)
+final class WelcomeScreen {
   @Override public boolean equals(Object o) {
     return o != null && o instanceof WelcomeScreen;
   }
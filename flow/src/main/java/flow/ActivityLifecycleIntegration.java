@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/**
+ * Drives a {@link LifecycleDelegate} from {@link Application.ActivityLifecycleCallbacks}, with no
+ * Fragment. Across configuration changes the delegate is kept in a static map, under a token
+ * saved in the Activity's instance state, and taken back by the recreated Activity.
+ */
+final class ActivityLifecycleIntegration
+    implements Application.ActivityLifecycleCallbacks, ComponentCallbacks2 {
+  private static final String RETAINED_KEY =
+      InternalLifecycleIntegration.class.getSimpleName() + "_retained";
+
+  /** Delegates of Activities being recreated for a configuration change, by token. */
+  private static final Map<String, LifecycleDelegate> retained = new HashMap<>();
+  private static final Map<Activity, LifecycleDelegate> installed = new WeakHashMap<>();
+
+  static @Nullable LifecycleDelegate find(Activity activity) {
+    return installed.get(activity);
+  }
+
+  static void install(Application app, Activity activity, LifecycleDelegate delegate) {
+    app.registerActivityLifecycleCallbacks(
+        new ActivityLifecycleIntegration(app, activity, delegate));
+  }
+
+  private final Application app;
+  private final Activity activity;
+  private LifecycleDelegate delegate;
+  @Nullable private Bundle savedInstanceState;
+  private boolean created;
+  @Nullable private String token;
+
+  private ActivityLifecycleIntegration(Application app, Activity activity,
+      LifecycleDelegate delegate) {
+    this.app = app;
+    this.activity = activity;
+    this.delegate = delegate;
+  }
+
+  @Override public void onActivityCreated(Activity a, Bundle savedInstanceState) {
+    if (a != activity) return;
+    String retainedToken = savedInstanceState == null //
+        ? null : savedInstanceState.getString(RETAINED_KEY);
+    LifecycleDelegate kept = retainedToken == null ? null : retained.remove(retainedToken);
+    if (kept != null) {
+      // We always replace the dispatcher because it frequently references the Activity.
+      kept.dispatcher = delegate.dispatcher;
+      delegate = kept;
+    }
+    delegate.intent = a.getIntent();
+    installed.put(activity, delegate);
+    this.savedInstanceState = savedInstanceState;
+    app.registerComponentCallbacks(this);
+  }
+
+  /** Creates the Flow when the Activity first starts, as a Fragment's onActivityCreated would. */
+  @Override public void onActivityStarted(Activity a) {
+    if (a != activity || created) return;
+    created = true;
+    delegate.onActivityCreated(savedInstanceState);
+    savedInstanceState = null;
+  }
+
+  @Override public void onActivityResumed(Activity a) {
+    if (a == activity) delegate.onResume();
+  }
+
+  @Override public void onActivityPaused(Activity a) {
+    if (a == activity) delegate.onPause();
+  }
+
+  @Override public void onActivityStopped(Activity a) {
+  }
+
+  @Override public void onActivitySaveInstanceState(Activity a, Bundle outState) {
+    if (a != activity) return;
+    delegate.onSaveInstanceState(outState);
+    if (token == null) token = UUID.randomUUID().toString();
+    outState.putString(RETAINED_KEY, token);
+  }
+
+  @Override public void onActivityDestroyed(Activity a) {
+    if (a != activity) return;
+    installed.remove(activity);
+    app.unregisterActivityLifecycleCallbacks(this);
+    app.unregisterComponentCallbacks(this);
+    delegate.onActivityDestroyed(activity);
+    if (activity.isChangingConfigurations() && token != null) {
+      retained.put(token, delegate);
+    } else if (created) {
+      delegate.onDestroy(activity.isFinishing());
+    }
+  }
+
+  @Override public void onTrimMemory(int level) {
+    if (created) delegate.onTrimMemory(level);
+  }
+
+  @Override public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  @Override public void onLowMemory() {
+  }
+}
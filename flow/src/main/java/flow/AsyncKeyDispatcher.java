@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * A Dispatcher that inflates the layout of each destination key on a background thread, then
+ * swaps it into a container on the main thread and completes the traversal. Navigation requested
+ * while a layout inflates is not held up by it: if the traversal is
+ * {@linkplain Traversal#isSuperseded superseded} by the time the view is ready, the view is
+ * dropped and Flow moves straight on to the next one. A dropped view is still used if the next
+ * traversal goes to the same key.
+ * <p>
+ * Layouts must be safe to inflate off the main thread, as with the support library's
+ * AsyncLayoutInflater: their views must not create Handlers or otherwise require a Looper in
+ * their constructors.
+ */
+public final class AsyncKeyDispatcher implements Dispatcher {
+  public static final class Builder {
+    private final ViewGroup container;
+    private final KeyLayouts layouts;
+    private Executor executor;
+
+    private Builder(ViewGroup container, KeyLayouts layouts) {
+      this.container = checkNotNull(container, "container");
+      this.layouts = checkNotNull(layouts, "layouts");
+    }
+
+    /**
+     * Where to inflate layouts. Defaults to a single thread shared by all AsyncKeyDispatchers,
+     * which keeps inflations from running concurrently.
+     */
+    @NonNull public Builder executor(@NonNull Executor executor) {
+      this.executor = checkNotNull(executor, "executor");
+      return this;
+    }
+
+    @NonNull public Dispatcher build() {
+      return new AsyncKeyDispatcher(container, layouts,
+          executor == null ? defaultExecutor() : executor);
+    }
+  }
+
+  /** Views are created with Contexts over the container's Context, and added to it. */
+  @NonNull public static Builder configure(@NonNull ViewGroup container,
+      @NonNull KeyLayouts layouts) {
+    return new Builder(container, layouts);
+  }
+
+  private static ExecutorService defaultExecutor;
+
+  private static synchronized Executor defaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(@NonNull Runnable runnable) {
+          Thread thread = new Thread(runnable, "flow-inflater");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return defaultExecutor;
+  }
+
+  private final ViewGroup container;
+  private final KeyLayouts layouts;
+  private final Executor executor;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  @Nullable private Object shownKey;
+  @Nullable private View shownView;
+  /** The last view inflated for a superseded traversal, in case it is dispatched to again. */
+  @Nullable private View dropped;
+
+  private AsyncKeyDispatcher(ViewGroup container, KeyLayouts layouts, Executor executor) {
+    this.container = container;
+    this.layouts = layouts;
+    this.executor = executor;
+  }
+
+  @Override public void dispatch(@NonNull final Traversal traversal,
+      @NonNull final TraversalCallback callback) {
+    final Object inKey = traversal.destination.top();
+    // Compared to what is shown rather than to the origin, which may have been dropped.
+    if (inKey.equals(shownKey)) {
+      callback.onTraversalCompleted();
+      return;
+    }
+
+    // Flow's state is only touched here, on the main thread.
+    final Context context = traversal.createContext(inKey, container.getContext());
+    View ready = dropped;
+    dropped = null;
+    if (ready != null && ready.getContext() == context) {
+      show(traversal, inKey, ready);
+      callback.onTraversalCompleted();
+      return;
+    }
+    final int layout = layouts.layoutFor(inKey);
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        View view = null;
+        RuntimeException failure = null;
+        try {
+          view = LayoutInflater.from(context).inflate(layout, container, false);
+        } catch (RuntimeException e) {
+          failure = e;
+        }
+        final View inflated = view;
+        final RuntimeException thrown = failure;
+        mainHandler.post(new Runnable() {
+          @Override public void run() {
+            if (thrown != null) throw thrown;
+            // Flow dispatches whatever superseded it, now or once its Scheduler runs, and
+            // holds it until a dispatcher is set again if this one has been removed.
+            if (traversal.isSuperseded()) {
+              dropped = inflated;
+            } else {
+              show(traversal, inKey, inflated);
+            }
+            callback.onTraversalCompleted();
+          }
+        });
+      }
+    });
+  }
+
+  private void show(Traversal traversal, Object key, View view) {
+    if (shownView != null) {
+      // Unless it was dropped from the history on the way.
+      if (shownView.getId() != View.NO_ID && traversal.destination.asList().contains(shownKey)) {
+        traversal.getState(shownKey).save(shownView);
+      }
+      container.removeView(shownView);
+    }
+    container.addView(view);
+    traversal.getState(key).restore(view);
+    shownKey = key;
+    shownView = view;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.View;
+import android.view.ViewGroup;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static flow.Preconditions.checkArgument;
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * A KeyChanger that shows one view per key in a container, and keeps the views it navigates
+ * forward from, detached, so that going back to them reattaches them instead of inflating anew.
+ * Their view state is live, so it is not restored from the {@link State}.
+ * <p>
+ * A cached view is only reused if the services of its Context are still those that Flow provides
+ * for its key. Keys with no {@link ServicesFactory} services always qualify; otherwise retain
+ * service scopes with {@link FlowHost.Builder#retainUnusedScopes}, or bind the same instances.
+ * <p>
+ * A traversal to the key already shown, such as the bootstrap traversal each time the Activity
+ * resumes, keeps the view and the cache as they are.
+ * <p>
+ * The cache is bounded by count and by the estimated size of its views, and is emptied when the
+ * history is replaced by one with another key on top. Register the changer with
+ * {@link Context#registerComponentCallbacks} to release it under memory pressure as well.
+ */
+public final class CachingKeyChanger implements KeyChanger, ComponentCallbacks2 {
+  /** Creates the view of a key, to be added to the container. */
+  public interface ViewFactory {
+    @NonNull View createView(@NonNull Object key, @NonNull Context context,
+        @NonNull ViewGroup container);
+  }
+
+  @NonNull public static Builder builder(@NonNull ViewGroup container,
+      @NonNull ViewFactory factory) {
+    return new Builder(container, factory);
+  }
+
+  public static final class Builder {
+    private final ViewGroup container;
+    private final ViewFactory factory;
+    private int maxViews = 3;
+    private long maxBytes = Runtime.getRuntime().maxMemory() / 16;
+
+    private Builder(ViewGroup container, ViewFactory factory) {
+      this.container = checkNotNull(container, "container");
+      this.factory = checkNotNull(factory, "factory");
+    }
+
+    /** The most views to keep detached. Defaults to 3; zero disables caching. */
+    @NonNull public Builder maxViews(int maxViews) {
+      checkArgument(maxViews >= 0, "maxViews must not be negative");
+      this.maxViews = maxViews;
+      return this;
+    }
+
+    /**
+     * The most memory the detached views may take, estimated at four bytes per pixel of the area
+     * each last occupied. Defaults to a sixteenth of the heap.
+     */
+    @NonNull public Builder maxBytes(long maxBytes) {
+      checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    @NonNull public CachingKeyChanger build() {
+      return new CachingKeyChanger(this);
+    }
+  }
+
+  private static final class CachedView {
+    final View view;
+    final long bytes;
+
+    CachedView(View view) {
+      this.view = view;
+      this.bytes = 4L * view.getWidth() * view.getHeight();
+    }
+  }
+
+  private final ViewGroup container;
+  private final ViewFactory factory;
+  private final int maxViews;
+  private final long maxBytes;
+  /** In access order, eldest first. */
+  private final Map<Object, CachedView> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+  @Nullable private View current;
+  @Nullable private Object currentKey;
+
+  private CachingKeyChanger(Builder builder) {
+    this.container = builder.container;
+    this.factory = builder.factory;
+    this.maxViews = builder.maxViews;
+    this.maxBytes = builder.maxBytes;
+  }
+
+  @Override public void changeKey(@Nullable State outgoingState, @NonNull State incomingState,
+      @NonNull Direction direction, @NonNull Map<Object, Context> incomingContexts,
+      @NonNull TraversalCallback callback) {
+    Object key = incomingState.getKey();
+    if (current != null && key.equals(currentKey)) {
+      // E.g. a bootstrap on resume: the live view is already the right one.
+      callback.onTraversalCompleted();
+      return;
+    }
+    Context context = incomingContexts.get(key);
+    View outgoing = current;
+    if (outgoing != null && outgoingState != null && outgoing.getId() != View.NO_ID) {
+      outgoingState.save(outgoing);
+    }
+    // Bootstrap traversals have no outgoing state, and replace nothing.
+    if (direction == Direction.REPLACE && outgoingState != null) evictAll();
+
+    View incoming = direction == Direction.BACKWARD ? take(key, context) : null;
+    if (incoming == null) {
+      incoming = factory.createView(key, context, container);
+      incomingState.restore(incoming);
+    }
+    if (outgoing != null) {
+      container.removeView(outgoing);
+      if (direction == Direction.FORWARD && outgoingState != null) {
+        put(outgoingState.getKey(), outgoing);
+      }
+    }
+    container.addView(incoming);
+    current = incoming;
+    currentKey = key;
+    callback.onTraversalCompleted();
+  }
+
+  /** Drops every detached view. */
+  public void evictAll() {
+    cache.clear();
+    cachedBytes = 0;
+  }
+
+  @Override public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      evictAll();
+    } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+      trimTo(cache.size() / 2, maxBytes);
+    }
+  }
+
+  @Override public void onLowMemory() {
+    evictAll();
+  }
+
+  @Override public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  int cachedCount() {
+    return cache.size();
+  }
+
+  @Nullable private View take(Object key, Context context) {
+    CachedView cached = cache.remove(key);
+    if (cached == null) return null;
+    cachedBytes -= cached.bytes;
+    FlowContextWrapper then = FlowContextWrapper.get(cached.view.getContext());
+    FlowContextWrapper now = FlowContextWrapper.get(context);
+    if (then == null || now == null || !then.services.isEquivalentTo(now.services)) return null;
+    return cached.view;
+  }
+
+  private void put(Object key, View view) {
+    CachedView cached = new CachedView(view);
+    CachedView replaced = cache.put(key, cached);
+    if (replaced != null) cachedBytes -= replaced.bytes;
+    cachedBytes += cached.bytes;
+    trimTo(maxViews, maxBytes);
+  }
+
+  private void trimTo(int views, long bytes) {
+    Iterator<CachedView> eldest = cache.values().iterator();
+    while (eldest.hasNext() && (cache.size() > views || cachedBytes > bytes)) {
+      cachedBytes -= eldest.next().bytes;
+      eldest.remove();
+    }
+  }
+}
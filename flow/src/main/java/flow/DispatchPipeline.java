@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * A Dispatcher made of named stages, run in order for each traversal. Each stage either passes
+ * the traversal on with {@link Chain#proceed}, or ends it early with {@link Chain#complete}; it
+ * may do so later, e.g. once an animation ends. The traversal completes once the last stage
+ * proceeds.
+ * <p>
+ * With a {@link StageListener}, the time each stage takes is measured twice: the time spent in
+ * {@link Interceptor#intercept}, minus that spent in the stages after it and in completing the
+ * traversal; and the time until the stage passed the traversal on, which for a stage that
+ * proceeds later includes the wait.
+ */
+public final class DispatchPipeline implements Dispatcher {
+  /** A stage of the pipeline. */
+  public interface Interceptor {
+    /** Must lead to one call of {@link Chain#proceed} or {@link Chain#complete}, now or later. */
+    void intercept(@NonNull Chain chain);
+  }
+
+  public interface StageListener {
+    /**
+     * Called once a stage has both returned from {@link Interceptor#intercept} and passed the
+     * traversal on. Not called for a stage that never passes it on.
+     *
+     * @param selfNanos time spent in {@link Interceptor#intercept}, minus that spent in the stages
+     * after it and in completing the traversal
+     * @param wallNanos time from calling {@link Interceptor#intercept} to the stage calling
+     * {@link Chain#proceed} or {@link Chain#complete}
+     */
+    void onStage(@NonNull String name, @NonNull Traversal traversal, long selfNanos,
+        long wallNanos);
+  }
+
+  /** Ends the traversal early if its top key is unchanged. */
+  @NonNull public static Interceptor skipSameTopKey() {
+    return SKIP_SAME_TOP_KEY;
+  }
+
+  /** Hands the traversal to a Dispatcher, and proceeds once it completes. */
+  @NonNull public static Interceptor dispatchTo(@NonNull final Dispatcher dispatcher) {
+    checkNotNull(dispatcher, "dispatcher");
+    return new Interceptor() {
+      @Override public void intercept(@NonNull final Chain chain) {
+        dispatcher.dispatch(chain.traversal(), new TraversalCallback() {
+          @Override public void onTraversalCompleted() {
+            chain.proceed();
+          }
+        });
+      }
+    };
+  }
+
+  @NonNull public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    private final List<String> names = new ArrayList<>();
+    private final List<Interceptor> interceptors = new ArrayList<>();
+    private StageListener listener;
+
+    private Builder() {
+    }
+
+    /** Appends a stage. Its name identifies it to the {@link StageListener}. */
+    @NonNull public Builder add(@NonNull String name, @NonNull Interceptor interceptor) {
+      names.add(checkNotNull(name, "name"));
+      interceptors.add(checkNotNull(interceptor, "interceptor"));
+      return this;
+    }
+
+    @NonNull public Builder listener(@NonNull StageListener listener) {
+      this.listener = checkNotNull(listener, "listener");
+      return this;
+    }
+
+    @NonNull public DispatchPipeline build() {
+      return new DispatchPipeline(names, interceptors, listener);
+    }
+  }
+
+  /** The traversal as it passes through one stage. */
+  public static final class Chain {
+    private final DispatchPipeline pipeline;
+    private final Traversal traversal;
+    private final TraversalCallback callback;
+    private final int index;
+    private boolean passed;
+    private boolean intercepting;
+    /** Time spent in later stages and completion while this stage intercepted. */
+    private long passingNanos;
+    private long startNanos;
+    private long selfNanos;
+    private long wallNanos;
+
+    Chain(DispatchPipeline pipeline, Traversal traversal, TraversalCallback callback, int index) {
+      this.pipeline = pipeline;
+      this.traversal = traversal;
+      this.callback = callback;
+      this.index = index;
+    }
+
+    @NonNull public Traversal traversal() {
+      return traversal;
+    }
+
+    /** Passes the traversal to the next stage, or completes it if this is the last. */
+    public void proceed() {
+      pass(index + 1);
+    }
+
+    /** Completes the traversal, skipping the stages after this one. */
+    public void complete() {
+      pass(pipeline.interceptors.size());
+    }
+
+    private void pass(int next) {
+      if (passed) {
+        throw new IllegalStateException(
+            "Stage " + pipeline.names.get(index) + " already passed on " + traversal.destination);
+      }
+      passed = true;
+      long start = pipeline.listener == null ? 0 : System.nanoTime();
+      if (pipeline.listener != null) {
+        wallNanos = start - startNanos;
+        // Passed on later: intercept has already returned, so the stage is done.
+        if (!intercepting) pipeline.report(this);
+      }
+      try {
+        pipeline.run(traversal, callback, next);
+      } finally {
+        if (intercepting && pipeline.listener != null) passingNanos += System.nanoTime() - start;
+      }
+    }
+  }
+
+  private static final Interceptor SKIP_SAME_TOP_KEY = new Interceptor() {
+    @Override public void intercept(@NonNull Chain chain) {
+      Traversal traversal = chain.traversal();
+      if (traversal.origin != null && traversal.origin.top().equals(traversal.destination.top())) {
+        chain.complete();
+      } else {
+        chain.proceed();
+      }
+    }
+  };
+
+  private final List<String> names;
+  private final List<Interceptor> interceptors;
+  private final StageListener listener;
+
+  private DispatchPipeline(List<String> names, List<Interceptor> interceptors,
+      StageListener listener) {
+    this.names = Collections.unmodifiableList(new ArrayList<>(names));
+    this.interceptors = Collections.unmodifiableList(new ArrayList<>(interceptors));
+    this.listener = listener;
+  }
+
+  @Override public void dispatch(@NonNull Traversal traversal,
+      @NonNull TraversalCallback callback) {
+    run(traversal, callback, 0);
+  }
+
+  private void run(Traversal traversal, TraversalCallback callback, int index) {
+    if (index == interceptors.size()) {
+      callback.onTraversalCompleted();
+      return;
+    }
+    Chain chain = new Chain(this, traversal, callback, index);
+    if (listener == null) {
+      interceptors.get(index).intercept(chain);
+      return;
+    }
+    chain.intercepting = true;
+    chain.startNanos = System.nanoTime();
+    try {
+      interceptors.get(index).intercept(chain);
+    } finally {
+      chain.intercepting = false;
+    }
+    chain.selfNanos = System.nanoTime() - chain.startNanos - chain.passingNanos;
+    if (chain.passed) report(chain);
+  }
+
+  private void report(Chain chain) {
+    listener.onStage(names.get(chain.index), chain.traversal, chain.selfNanos, chain.wallNanos);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Keeps state in an append-only log file, so that it survives process death. Writes are plain
+ * appends; the file is compacted once most of it is taken up by replaced or removed states. This
+ * is Flow's default store.
+ */
+public final class FileStateStore extends LogStateStore {
+  public FileStateStore(@NonNull File file) {
+    super(checkNotNull(file, "file"));
+  }
+
+  @Override Log open(File file) throws IOException {
+    return new FileLog(new RandomAccessFile(file, "rw"));
+  }
+
+  private static final class FileLog implements Log {
+    private final RandomAccessFile file;
+
+    FileLog(RandomAccessFile file) {
+      this.file = file;
+    }
+
+    @Override public long end() throws IOException {
+      return file.length();
+    }
+
+    @Override public void read(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      file.seek(position);
+      file.readFully(buffer, offset, length);
+    }
+
+    @Override public void append(byte[] record) throws IOException {
+      file.seek(file.length());
+      file.write(record);
+    }
+
+    @Override public void truncate(long position) throws IOException {
+      if (position < file.length()) file.setLength(position);
+    }
+
+    @Override public void close() throws IOException {
+      file.close();
+    }
+  }
+}
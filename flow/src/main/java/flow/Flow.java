@@ -23,26 +23,25 @@ import android.support.annotation.CheckResult;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.view.View;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import static flow.Preconditions.checkArgument;
 import static flow.Preconditions.checkNotNull;
 
 /** Holds the current truth, the history of screens, and exposes operations to change it. */
 public final class Flow {
-  static final Object ROOT_KEY = new Object() {
-    @Override public String toString() {
-      return Flow.class.getName() + ".ROOT_KEY";
-    }
-  };
-
   /**
-   * Convenience overload of {@link #get(Context)}.
+   * Convenience overload of {@link #get(Context)}. The lookup is cached on the View, so repeated
+   * calls are cheap.
    */
   @NonNull public static Flow get(@NonNull View view) {
-    return get(view.getContext());
+    Flow flow = ViewLookup.of(view).flow();
+    if (null == flow) {
+      throw new IllegalStateException("Context was not wrapped with flow. "
+          + "Make sure attachBaseContext was overridden in your main activity");
+    }
+    return flow;
   }
 
   /**
@@ -71,9 +70,14 @@ public final class Flow {
     return wrapper.services.getKey();
   }
 
-  /** @return null if view's Context has no Flow key embedded. */
+  /**
+   * @return null if view's Context has no Flow key embedded. The lookup is cached on the View, so
+   * repeated calls are cheap.
+   */
   @Nullable public static <T> T getKey(@NonNull View view) {
-    return getKey(view.getContext());
+    final FlowContextWrapper wrapper = ViewLookup.of(view).wrapper();
+    if (wrapper == null) return null;
+    return wrapper.services.getKey();
   }
 
   /** @return null if context does not contain the named service. */
@@ -83,9 +87,14 @@ public final class Flow {
     return wrapper.services.getService(serviceName);
   }
 
-  /** @return null if context does not contain the named service. */
+  /**
+   * @return null if view's Context does not contain the named service. The lookup is cached on the
+   * View, so repeated calls are cheap.
+   */
   @Nullable public static <T> T getService(@NonNull String serviceName, @NonNull View view) {
-    return getService(serviceName, view.getContext());
+    final FlowContextWrapper wrapper = ViewLookup.of(view).wrapper();
+    if (wrapper == null) return null;
+    return wrapper.services.getService(serviceName);
   }
 
   @NonNull
@@ -93,7 +102,11 @@ public final class Flow {
     return new Installer(baseContext, activity);
   }
 
-  /** Adds a history as an extra to an Intent. */
+  /**
+   * Adds a history as an extra to an Intent. An Activity of this process that receives the Intent
+   * gets the given instance, with the same keys; one in another process, or one recreated after
+   * this process died, reads the keys back with the parceler.
+   */
   public static void addHistory(@NonNull Intent intent, @NonNull History history,
       @NonNull KeyParceler parceler) {
     InternalLifecycleIntegration.addHistoryToIntent(intent, history, parceler);
@@ -109,26 +122,158 @@ public final class Flow {
     //noinspection ConstantConditions
     checkArgument(intent != null, "intent may not be null");
     if (intent.hasExtra(InternalLifecycleIntegration.INTENT_KEY)) {
-      InternalLifecycleIntegration.require(activity).onNewIntent(intent);
+      LifecycleDelegate.require(activity).onNewIntent(intent);
       return true;
     }
     return false;
   }
 
-  private History history;
   private HistoryFilter historyFilter = new NotPersistentHistoryFilter();
-  private Dispatcher dispatcher;
-  private PendingTraversal pendingTraversal;
-  private List<Object> tearDownKeys = new ArrayList<>();
   private final KeyManager keyManager;
-
-  Flow(KeyManager keyManager, History history) {
+  private final FlowEngine<Dispatcher> engine;
+  @Nullable private StateSpillover parkingSpillover;
+  private int parkThreshold;
+  @Nullable private HistoryJournal journal;
+  private Tracer tracer = Tracer.none();
+  private volatile ThreadSafeFlow threadSafe;
+
+  Flow(final KeyManager keyManager, History history) {
     this.keyManager = keyManager;
-    this.history = history;
+    this.engine = new FlowEngine<Dispatcher>(keyManager, history) {
+      @Override void dispatch(@NonNull Dispatcher dispatcher, @Nullable History origin,
+          @NonNull History destination, @NonNull Direction direction,
+          @NonNull FlowEngine.Pending pending, @NonNull TraversalCallback callback) {
+        Traversal traversal = new Traversal(origin, destination, direction, keyManager);
+        traversal.pending = pending;
+        tracer.beginSection(Tracer.DISPATCH);
+        try {
+          dispatcher.dispatch(traversal, callback);
+        } finally {
+          tracer.endSection();
+        }
+      }
+
+      @Override void setUp(Object key) {
+        tracer.beginSection(Tracer.SET_UP);
+        try {
+          super.setUp(key);
+        } finally {
+          tracer.endSection();
+        }
+      }
+
+      @Override void onIdle(boolean historyChanged) {
+        onTraversalsIdle(historyChanged);
+      }
+    };
+  }
+
+  void setTracer(@NonNull Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  /**
+   * If false, a dispatcher restored with {@link #setDispatcher(Dispatcher, boolean)} gets no
+   * bootstrap traversal when it already completed one to the current history.
+   */
+  void setRedispatchOnResume(boolean redispatchOnResume) {
+    engine.setRedispatchOnResume(redispatchOnResume);
+  }
+
+  /** @see Scheduler */
+  void setScheduler(@NonNull final Scheduler scheduler) {
+    checkNotNull(scheduler, "scheduler");
+    engine.setExecutor(scheduler == Scheduler.immediate() ? null : new Executor() {
+      @Override public void execute(@NonNull Runnable work) {
+        scheduler.schedule(work);
+      }
+    });
+  }
+
+  /** Spills back stack states of at least the given size each time traversals go idle. */
+  void parkBackStackStates(@NonNull StateSpillover spillover, int minBytes) {
+    this.parkingSpillover = spillover;
+    this.parkThreshold = minBytes;
   }
 
   @NonNull public History getHistory() {
-    return history;
+    return engine.getHistory();
+  }
+
+  /**
+   * @return a facade of this Flow that may be navigated from any thread, e.g. from network
+   * callbacks, and hands the navigation to this Flow on the main thread
+   */
+  @NonNull public ThreadSafeFlow threadSafe() {
+    ThreadSafeFlow result = threadSafe;
+    if (result == null) {
+      synchronized (this) {
+        result = threadSafe;
+        if (result == null) threadSafe = result = new ThreadSafeFlow(this);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns an estimate of the memory held for the keys in the history: their saved {@link State}
+   * and their services. Meant for metrics and budgets; this measures every State, so avoid calling
+   * it on every frame.
+   */
+  @NonNull public MemoryReport getMemoryReport() {
+    return keyManager.getMemoryReport(getHistory().size());
+  }
+
+  /** Applies the given {@link TrimMemoryPolicy} actions. */
+  void trimMemory(int level, Set<TrimMemoryPolicy.Action> actions,
+      @Nullable StateSpillover spillover) {
+    // Leave State alone while a traversal may be saving or restoring it.
+    if (engine.isIdle()) {
+      History history = getHistory();
+      boolean spill = spillover != null
+          && actions.contains(TrimMemoryPolicy.Action.SPILL_BACKSTACK_STATE);
+      boolean drop = actions.contains(TrimMemoryPolicy.Action.DROP_BACKSTACK_VIEW_STATE);
+      if (spill || drop) {
+        Object top = history.top();
+        for (Object key : history.framesFromTop()) {
+          if (key == top || !keyManager.hasState(key)) continue;
+          State state = keyManager.getState(key);
+          if (spill) {
+            state.spill(spillover);
+          } else {
+            state.dropViewState();
+          }
+        }
+      }
+      if (actions.contains(TrimMemoryPolicy.Action.COMPACT)) {
+        keyManager.clearStatesExcept(history.asList());
+        keyManager.compact();
+      }
+    }
+    if (actions.contains(TrimMemoryPolicy.Action.TRIM_SERVICES)) {
+      keyManager.trimServices(level);
+    }
+  }
+
+  private void onTraversalsIdle(boolean historyChanged) {
+    keyManager.clearStatesExcept(getHistory().asList());
+    if (parkingSpillover != null) parkBackStack(parkingSpillover);
+    if (journal != null && historyChanged) journal.record(getFilteredHistory());
+  }
+
+  private void parkBackStack(StateSpillover spillover) {
+    History history = getHistory();
+    Object top = history.top();
+    for (Object key : history.framesFromTop()) {
+      if (key == top || !keyManager.hasState(key)) continue;
+      State state = keyManager.getState(key);
+      if (state.estimateSize() >= parkThreshold) state.spill(spillover);
+    }
+  }
+
+  /** Records the filtered history to the given journal each time traversals go idle. */
+  void setJournal(@NonNull HistoryJournal journal) {
+    this.journal = journal;
   }
 
   History getFilteredHistory() {
@@ -152,31 +297,8 @@ public final class Flow {
     this.historyFilter = historyFilter;
   }
 
-  void setDispatcher(@NonNull Dispatcher dispatcher, final boolean restore) {
-    this.dispatcher = checkNotNull(dispatcher, "dispatcher");
-
-    if (pendingTraversal == null || //
-        (pendingTraversal.state == TraversalState.DISPATCHED && pendingTraversal.next == null)) {
-      // Nothing is happening;
-      // OR, there is an outstanding callback and nothing will happen after it;
-      // So enqueue a bootstrap traversal.
-      move(new PendingTraversal() {
-        @Override void doExecute() {
-          bootstrap(history, restore);
-        }
-      });
-      return;
-    }
-
-    if (pendingTraversal.state == TraversalState.ENQUEUED) {
-      // A traversal was enqueued while we had no dispatcher, run it now.
-      pendingTraversal.execute();
-      return;
-    }
-
-    if (pendingTraversal.state != TraversalState.DISPATCHED) {
-      throw new AssertionError("Hanging traversal in unexpected state " + pendingTraversal.state);
-    }
+  void setDispatcher(@NonNull Dispatcher dispatcher, boolean restore) {
+    engine.setDispatcher(dispatcher, restore);
   }
 
   /**
@@ -186,20 +308,14 @@ public final class Flow {
    * until a new dispatcher is set.
    */
   public void removeDispatcher(@NonNull Dispatcher dispatcher) {
-    // This mechanism protects against out of order calls to this method and setDispatcher
-    // (e.g. if an outgoing activity is paused after an incoming one resumes).
-    if (this.dispatcher == checkNotNull(dispatcher, "dispatcher")) this.dispatcher = null;
+    engine.removeDispatcher(dispatcher);
   }
 
   /**
    * Replaces the history with the one given and dispatches in the given direction.
    */
-  public void setHistory(@NonNull final History history, @NonNull final Direction direction) {
-    move(new PendingTraversal() {
-      @Override void doExecute() {
-        dispatch(preserveEquivalentPrefix(getHistory(), history), direction);
-      }
-    });
+  public void setHistory(@NonNull History history, @NonNull Direction direction) {
+    engine.setHistory(history, direction);
   }
 
   /**
@@ -231,44 +347,8 @@ public final class Flow {
    *
    * Objects' equality is always checked using {@link Object#equals(Object)}.
    */
-  public void set(@NonNull final Object newTopKey) {
-    move(new PendingTraversal() {
-      @Override void doExecute() {
-        if (newTopKey.equals(history.top())) {
-          dispatch(history, Direction.REPLACE);
-          return;
-        }
-
-        History.Builder builder = history.buildUpon();
-        int count = 0;
-        // Search backward to see if we already have newTop on the stack
-        Object preservedInstance = null;
-        for (Object entry : history.framesFromBottom()) {
-          // If we find newTop on the stack, pop back to it.
-          if (entry.equals(newTopKey)) {
-            for (int i = 0; i < history.size() - count; i++) {
-              preservedInstance = builder.pop();
-            }
-            break;
-          } else {
-            count++;
-          }
-        }
-
-        History newHistory;
-        if (preservedInstance != null) {
-          // newTop was on the history. Put the preserved instance back on and dispatch.
-          builder.push(preservedInstance);
-          newHistory = builder.build();
-          dispatch(newHistory, Direction.BACKWARD);
-        } else {
-          // newTop was not on the history. Push it on and dispatch.
-          builder.push(newTopKey);
-          newHistory = builder.build();
-          dispatch(newHistory, Direction.FORWARD);
-        }
-      }
-    });
+  public void set(@NonNull Object newTopKey) {
+    engine.set(newTopKey);
   }
 
   /**
@@ -285,153 +365,6 @@ public final class Flow {
    * @return false if going back is not possible.
    */
   @CheckResult public boolean goBack() {
-    boolean canGoBack = history.size() > 1 || (pendingTraversal != null
-        && pendingTraversal.state != TraversalState.FINISHED);
-    if (!canGoBack) return false;
-
-    move(new PendingTraversal() {
-      @Override void doExecute() {
-        if (history.size() <= 1) {
-          // The history shrank while this op was pending. It happens, let's
-          // no-op. See lengthy discussions:
-          // https://github.com/square/flow/issues/195
-          // https://github.com/square/flow/pull/197
-          return;
-        }
-
-        History.Builder builder = history.buildUpon();
-        builder.pop();
-        final History newHistory = builder.build();
-        dispatch(newHistory, Direction.BACKWARD);
-      }
-    });
-    return true;
-  }
-
-  private void move(PendingTraversal pendingTraversal) {
-    if (this.pendingTraversal == null) {
-      this.pendingTraversal = pendingTraversal;
-      // If there is no dispatcher wait until one shows up before executing.
-      if (dispatcher != null) pendingTraversal.execute();
-    } else {
-      this.pendingTraversal.enqueue(pendingTraversal);
-    }
-  }
-
-  private static History preserveEquivalentPrefix(History current, History proposed) {
-    Iterator<Object> oldIt = current.framesFromBottom().iterator();
-    Iterator<Object> newIt = proposed.framesFromBottom().iterator();
-
-    History.Builder preserving = current.buildUpon().clear();
-
-    while (newIt.hasNext()) {
-      Object newEntry = newIt.next();
-      if (!oldIt.hasNext()) {
-        preserving.push(newEntry);
-        break;
-      }
-      Object oldEntry = oldIt.next();
-      if (oldEntry.equals(newEntry)) {
-        preserving.push(oldEntry);
-      } else {
-        preserving.push(newEntry);
-        break;
-      }
-    }
-
-    while (newIt.hasNext()) {
-      preserving.push(newIt.next());
-    }
-    return preserving.build();
-  }
-
-  private enum TraversalState {
-    /** {@link PendingTraversal#execute} has not been called. */
-    ENQUEUED,
-
-    /**
-     * {@link PendingTraversal#execute} was called, waiting for {@link
-     * PendingTraversal#onTraversalCompleted}.
-     */
-    DISPATCHED,
-
-    /**
-     * {@link PendingTraversal#onTraversalCompleted} was called.
-     */
-    FINISHED
-  }
-
-  private abstract class PendingTraversal implements TraversalCallback {
-
-    TraversalState state = TraversalState.ENQUEUED;
-    PendingTraversal next;
-    History nextHistory;
-
-    void enqueue(PendingTraversal pendingTraversal) {
-      if (this.next == null) {
-        this.next = pendingTraversal;
-      } else {
-        this.next.enqueue(pendingTraversal);
-      }
-    }
-
-    @Override public void onTraversalCompleted() {
-      if (state != TraversalState.DISPATCHED) {
-        throw new IllegalStateException(
-            state == TraversalState.FINISHED ? "onComplete already called for this transition"
-                : "transition not yet dispatched!");
-      }
-      // Is not set by noop and bootstrap transitions.
-      if (nextHistory != null) {
-        tearDownKeys.add(history.top());
-        history = nextHistory;
-      }
-      state = TraversalState.FINISHED;
-      pendingTraversal = next;
-
-      if (pendingTraversal == null) {
-        final Iterator<Object> it = tearDownKeys.iterator();
-        while (it.hasNext()) {
-          keyManager.tearDown(it.next());
-          it.remove();
-        }
-        keyManager.clearStatesExcept(history.asList());
-      } else if (dispatcher != null) {
-        pendingTraversal.execute();
-      }
-    }
-
-    void bootstrap(History history, boolean restore) {
-      if (dispatcher == null) {
-        throw new AssertionError("Bad doExecute method allowed dispatcher to be cleared");
-      }
-      if (!restore) {
-        keyManager.setUp(history.top());
-      }
-      dispatcher.dispatch(new Traversal(null, history, Direction.REPLACE, keyManager), this);
-    }
-
-    void dispatch(History nextHistory, Direction direction) {
-      this.nextHistory = checkNotNull(nextHistory, "nextHistory");
-      if (dispatcher == null) {
-        throw new AssertionError("Bad doExecute method allowed dispatcher to be cleared");
-      }
-      keyManager.setUp(nextHistory.top());
-      dispatcher.dispatch(new Traversal(getHistory(), nextHistory, direction, keyManager), this);
-    }
-
-    final void execute() {
-      if (state != TraversalState.ENQUEUED) throw new AssertionError("unexpected state " + state);
-      if (dispatcher == null) throw new AssertionError("Caller must ensure that dispatcher is set");
-
-      state = TraversalState.DISPATCHED;
-      doExecute();
-    }
-
-    /**
-     * Must be synchronous and end with a call to {@link #dispatch} or {@link
-     * #onTraversalCompleted()}.
-     */
-    abstract void doExecute();
+    return engine.goBack();
   }
 }
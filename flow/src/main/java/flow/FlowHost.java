@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+
+import static flow.Preconditions.checkArgument;
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Service scopes shared by the Activities of a process. Keep one in your Application, and attach
+ * each Activity to it with {@link Installer#host}. Equal keys then resolve to the same
+ * {@link Services}, set up by the host's {@link ServicesFactory ServicesFactories} when the first
+ * Activity shows the key and torn down when the last one is done with it. Moving a history from
+ * one Activity to another no longer rebuilds its scopes.
+ * <p>
+ * Each Activity keeps its own history and {@link State}s. Use from the main thread only.
+ */
+public final class FlowHost {
+  @NonNull public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    private final List<ServicesFactory> servicesFactories = new ArrayList<>();
+    private int retainUnusedScopes;
+
+    private Builder() {
+    }
+
+    /**
+     * Applies a factory when creating the services associated with a given key.
+     *
+     * May be called multiple times. Factories are called in the order given during setup, and
+     * in reverse order during teardown.
+     */
+    @NonNull public Builder addServicesFactory(@NonNull ServicesFactory factory) {
+      servicesFactories.add(checkNotNull(factory, "factory"));
+      return this;
+    }
+
+    /**
+     * Keeps up to the given number of scopes after no Activity uses them any more, the most
+     * recently released first, so that navigating back to an equal key reuses them. The rest are
+     * torn down, as are all retained scopes on {@link #releaseUnusedScopes()} or when trimming
+     * memory with {@link TrimMemoryPolicy.Action#TRIM_SERVICES}. Defaults to 0.
+     */
+    @NonNull public Builder retainUnusedScopes(int max) {
+      checkArgument(max >= 0, "max must not be negative");
+      this.retainUnusedScopes = max;
+      return this;
+    }
+
+    @NonNull public FlowHost build() {
+      return new FlowHost(new ServiceScopes(servicesFactories, retainUnusedScopes));
+    }
+  }
+
+  final ServiceScopes scopes;
+
+  private FlowHost(ServiceScopes scopes) {
+    this.scopes = scopes;
+  }
+
+  /** Tears down the scopes kept by {@link Builder#retainUnusedScopes} that are still unused. */
+  public void releaseUnusedScopes() {
+    scopes.releaseUnused();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static flow.InternalLifecycleIntegration.PERSISTENCE_KEY;
+
+/**
+ * Writes a history of {@link State}s into a Bundle. With a {@link StreamingKeyParceler}, the keys
+ * of all frames go into one parcel with back-references, so each distinct key is written once,
+ * and each State is written without its key. Otherwise each State is written with its own key.
+ */
+final class HistoryEncoder {
+  private static final String KEYS = HistoryEncoder.class.getSimpleName() + "_keys";
+
+  static void encode(Bundle out, List<State> states, KeyParceler parceler) {
+    List<Object> keys = new ArrayList<>(states.size());
+    for (State state : states) {
+      keys.add(state.getKey());
+    }
+    byte[] encodedKeys = encodeKeys(keys, parceler);
+    ArrayList<Parcelable> bundles = new ArrayList<>(states.size());
+    for (State state : states) {
+      bundles.add(encodedKeys == null ? state.toBundle(parceler) : state.toContentsBundle());
+    }
+    if (encodedKeys != null) out.putByteArray(KEYS, encodedKeys);
+    out.putParcelableArrayList(PERSISTENCE_KEY, bundles);
+  }
+
+  /** Writes only the keys of the given history, with no state. */
+  static void encodeKeys(Bundle out, History history, KeyParceler parceler) {
+    byte[] encodedKeys = encodeKeys(history.asList(), parceler);
+    if (encodedKeys != null) {
+      out.putByteArray(KEYS, encodedKeys);
+      return;
+    }
+    ArrayList<Parcelable> bundles = new ArrayList<>(history.size());
+    for (Object key : history.framesFromBottom()) {
+      bundles.add(State.empty(key).toBundle(parceler));
+    }
+    out.putParcelableArrayList(PERSISTENCE_KEY, bundles);
+  }
+
+  /**
+   * Pushes the keys read from the given bundle, and adds their states to the KeyManager.
+   *
+   * @param spillover where states saved while spilled were spilled to
+   */
+  static void decode(Bundle in, KeyParceler parceler, History.Builder builder,
+      KeyManager keyManager, @Nullable StateSpillover spillover) {
+    ArrayList<Parcelable> bundles = in.getParcelableArrayList(PERSISTENCE_KEY);
+    byte[] encodedKeys = in.getByteArray(KEYS);
+    if (encodedKeys == null) {
+      if (bundles == null) return;
+      for (Parcelable bundle : bundles) {
+        State state = State.fromBundle((Bundle) bundle, parceler, spillover);
+        builder.push(state.getKey());
+        if (!keyManager.hasState(state.getKey())) {
+          keyManager.addState(state);
+        }
+      }
+      return;
+    }
+
+    if (!(parceler instanceof StreamingKeyParceler)) {
+      throw new IllegalStateException(
+          "History was saved by a StreamingKeyParceler, but " + parceler + " is not one");
+    }
+    List<Object> keys = decodeKeys(encodedKeys, (StreamingKeyParceler) parceler);
+    for (int i = 0; i < keys.size(); i++) {
+      Object key = keys.get(i);
+      builder.push(key);
+      if (bundles != null && !keyManager.hasState(key)) {
+        keyManager.addState(
+            State.fromContentsBundle(key, (Bundle) bundles.get(i), spillover));
+      }
+    }
+  }
+
+  /** @return the keys written into a single parcel, or null if the parceler can't do that. */
+  @Nullable private static byte[] encodeKeys(List<Object> keys, KeyParceler parceler) {
+    if (!(parceler instanceof StreamingKeyParceler)) return null;
+    StreamingKeyParceler streaming = (StreamingKeyParceler) parceler;
+
+    KeyRefs refs = new KeyRefs();
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeInt(keys.size());
+      for (Object key : keys) {
+        streaming.writeKey(parcel, key, refs);
+      }
+      return parcel.marshall();
+    } catch (RuntimeException e) {
+      // Keys holding binders or file descriptors can't be marshalled; parcel them one by one.
+      return null;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static List<Object> decodeKeys(byte[] encodedKeys, StreamingKeyParceler parceler) {
+    KeyRefs refs = new KeyRefs();
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(encodedKeys, 0, encodedKeys.length);
+      parcel.setDataPosition(0);
+      int size = parcel.readInt();
+      List<Object> keys = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        keys.add(parceler.readKey(parcel, refs));
+      }
+      return keys;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private HistoryEncoder() {
+    throw new AssertionError();
+  }
+}
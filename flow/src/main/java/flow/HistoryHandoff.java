@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Hands histories to Activities in the same process without parceling them. The sender registers
+ * the history and sends only the token; the receiver takes the history back by token. Tokens are
+ * useless in another process or after process death, so senders must send a parceled copy too.
+ * <p>
+ * Histories in intents that are never delivered are not taken, so only the most recent few are
+ * kept.
+ */
+final class HistoryHandoff {
+  private static final int MAX_PENDING = 8;
+
+  private static final Map<String, History> pending = new Pending();
+
+  /** @return the token with which to {@link #take} the given history. */
+  @NonNull static String put(@NonNull History history) {
+    String token = UUID.randomUUID().toString();
+    synchronized (pending) {
+      pending.put(token, history);
+    }
+    return token;
+  }
+
+  /** @return the history registered under the given token, or null if it is gone. */
+  @Nullable static History take(@Nullable String token) {
+    if (token == null) return null;
+    synchronized (pending) {
+      return pending.remove(token);
+    }
+  }
+
+  /** Keeps the most recently put histories. */
+  private static final class Pending extends LinkedHashMap<String, History> {
+    private static final long serialVersionUID = 1L;
+
+    Pending() {
+      super(MAX_PENDING, 0.75f, false);
+    }
+
+    @Override protected boolean removeEldestEntry(Map.Entry<String, History> eldest) {
+      return size() > MAX_PENDING;
+    }
+  }
+
+  private HistoryHandoff() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records each committed history to a {@link StateStore}, so that it can be restored after the
+ * process dies without saving instance state: a crash, or the app being swiped from recents.
+ * <p>
+ * Only keys are recorded, as parceled by the {@link KeyParceler}; view state and bundles are not.
+ * Keys are parceled on the calling thread, since they are not necessarily safe to read elsewhere,
+ * but written on a background thread. Histories recorded faster than they can be written are
+ * coalesced, and only the latest is written.
+ * <p>
+ * A restored history may be what crashed the app, so each replay is counted until the app shows
+ * it is healthy: by recording a new history, or saving instance state on its way to the
+ * background. After {@link #MAX_REPLAYS} replays in a row without either, the journal is dropped
+ * rather than restored again.
+ */
+final class HistoryJournal {
+  private static final String TAG = "flow-journal";
+  private static final String LOG = "history.log";
+  private static final String KEYS = "KEYS";
+  private static final String REPLAYS = "#replays";
+  /** Replays in a row, without the app showing it is healthy, after which the journal is dropped. */
+  static final int MAX_REPLAYS = 2;
+  /** Marks a pending removal. */
+  private static final byte[] CLEARED = new byte[0];
+
+  private static StateStore defaultStore;
+  private static ExecutorService writer;
+
+  /**
+   * @return the store used when none is installed. A memory-mapped log, so that writing a history
+   * costs little more than copying it. Shared by every Flow in the process.
+   */
+  static synchronized StateStore defaultStore(Context context) {
+    if (defaultStore == null) {
+      defaultStore = new MappedStateStore(new File(StateSpillover.directory(context), LOG));
+    }
+    return defaultStore;
+  }
+
+  static synchronized Executor writer() {
+    if (writer == null) {
+      writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(@NonNull Runnable runnable) {
+          Thread thread = new Thread(runnable, TAG);
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+    return writer;
+  }
+
+  private final StateStore store;
+  private final String id;
+  private final String replaysId;
+  private final KeyParceler parceler;
+  private final Executor executor;
+  @Nullable private byte[] pending;
+  @Nullable private FutureTask<byte[]> prefetched;
+  /** True from replaying the journal until the app shows it is healthy. */
+  private volatile boolean replaying;
+
+  private final Runnable forgetReplays = new Runnable() {
+    @Override public void run() {
+      try {
+        store.remove(replaysId);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to write history", e);
+      }
+    }
+  };
+
+  private final Runnable flush = new Runnable() {
+    @Override public void run() {
+      byte[] data;
+      synchronized (HistoryJournal.this) {
+        data = pending;
+        pending = null;
+      }
+      if (data == null) return;
+      try {
+        if (data == CLEARED) {
+          store.remove(id);
+          store.remove(replaysId);
+        } else {
+          store.put(id, data);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to write history", e);
+      }
+    }
+  };
+
+  /** @param id distinguishes this journal from those of other Activities sharing the store */
+  HistoryJournal(StateStore store, String id, KeyParceler parceler, Executor executor) {
+    this.store = store;
+    this.id = id;
+    this.replaysId = id + REPLAYS;
+    this.parceler = parceler;
+    this.executor = executor;
+  }
+
+  /**
+   * Starts reading the recorded history on the background thread, so that {@link #read} need not
+   * open the store on the main thread. Call before anything is recorded.
+   */
+  void prefetch() {
+    FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+      @Override public byte[] call() throws IOException {
+        return store.get(id);
+      }
+    });
+    synchronized (this) {
+      prefetched = task;
+    }
+    executor.execute(task);
+  }
+
+  /** Records the given history, replacing the one recorded before. */
+  void record(@NonNull History history) {
+    markHealthy();
+    ArrayList<Parcelable> keys = new ArrayList<>(history.size());
+    for (Object key : history.framesFromBottom()) {
+      keys.add(parceler.toParcelable(key));
+    }
+    if (keys.isEmpty()) {
+      enqueue(CLEARED);
+      return;
+    }
+
+    Bundle bundle = new Bundle();
+    bundle.putParcelableArrayList(KEYS, keys);
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(bundle);
+      enqueue(parcel.marshall());
+    } catch (RuntimeException e) {
+      // E.g. a key parceled to something holding a binder, which can't be written to storage.
+      Log.w(TAG, "Unable to record history", e);
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  /** Forgets the recorded history, e.g. once the user has finished with the Activity. */
+  void clear() {
+    replaying = false;
+    enqueue(CLEARED);
+  }
+
+  /** Notes that the app survived the replayed history, so that it may be replayed again. */
+  void markHealthy() {
+    if (!replaying) return;
+    replaying = false;
+    executor.execute(forgetReplays);
+  }
+
+  /**
+   * Reads the recorded history, waiting for {@link #prefetch} if it was called, or else on the
+   * calling thread. Meant to be called once, at startup, before anything is recorded. Counts the
+   * replay, on the calling thread so that it is stored before the history is shown.
+   *
+   * @return the recorded history, or null if there is none, it can't be read, or it has been
+   * replayed {@link #MAX_REPLAYS} times without the app showing it is healthy
+   */
+  @Nullable History read() {
+    byte[] data;
+    int replays;
+    try {
+      data = fetch();
+      if (data == null) return null;
+      byte[] count = store.get(replaysId);
+      replays = count == null || count.length == 0 ? 0 : count[0];
+      if (replays >= MAX_REPLAYS) {
+        Log.w(TAG, "Dropping history replayed " + replays + " times without recovering");
+        clear();
+        return null;
+      }
+      store.put(replaysId, new byte[] {(byte) (replays + 1)});
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read history", e);
+      return null;
+    }
+    replaying = true;
+
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      Bundle bundle = parcel.readBundle(parceler.getClass().getClassLoader());
+      ArrayList<Parcelable> keys =
+          bundle == null ? null : bundle.<Parcelable>getParcelableArrayList(KEYS);
+      if (keys == null || keys.isEmpty()) return null;
+
+      History.Builder builder = History.emptyBuilder();
+      for (Parcelable key : keys) {
+        builder.push(parceler.toKey(key));
+      }
+      return builder.build();
+    } catch (RuntimeException e) {
+      // The keys may have changed shape since they were recorded.
+      Log.w(TAG, "Unable to restore history", e);
+      return null;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  @Nullable private byte[] fetch() throws IOException {
+    FutureTask<byte[]> task;
+    synchronized (this) {
+      task = prefetched;
+      prefetched = null;
+    }
+    if (task == null) return store.get(id);
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new RuntimeException(cause);
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  private void enqueue(byte[] data) {
+    boolean schedule;
+    synchronized (this) {
+      schedule = pending == null;
+      pending = data;
+    }
+    if (schedule) executor.execute(flush);
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps state on the Java heap, in its compact encoded form. Nothing survives process death, so
+ * states spilled over the {@link Installer#savedStateBudget saved state budget} are lost if the
+ * process is killed in the background.
+ */
+public final class InMemoryStateStore implements StateStore {
+  private final Map<String, byte[]> data = new HashMap<>();
+
+  @Override public synchronized void put(@NonNull String id, @NonNull byte[] data) {
+    this.data.put(id, data.clone());
+  }
+
+  @Nullable @Override public synchronized byte[] get(@NonNull String id) {
+    byte[] bytes = data.get(id);
+    return bytes == null ? null : bytes.clone();
+  }
+
+  @Override public synchronized void remove(@NonNull String id) {
+    data.remove(id);
+  }
+}
@@ -24,6 +24,9 @@ import android.support.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 
+import static flow.Preconditions.checkArgument;
+import static flow.Preconditions.checkNotNull;
+
 public final class Installer {
 
   private final Context baseContext;
@@ -32,6 +35,17 @@ public final class Installer {
   private KeyParceler parceler;
   private Object defaultKey;
   private Dispatcher dispatcher;
+  private int savedStateBudget;
+  private TrimMemoryPolicy trimMemoryPolicy = TrimMemoryPolicy.none();
+  private StateStore stateStore;
+  private int parkThreshold;
+  private boolean journalHistory;
+  private StateStore journalStore;
+  private FlowHost host;
+  private boolean retainWithFragment = true;
+  private Tracer tracer = Tracer.none();
+  private boolean redispatchOnResume = true;
+  private Scheduler scheduler = Scheduler.immediate();
 
   Installer(Context baseContext, Activity activity) {
     this.baseContext = baseContext;
@@ -53,6 +67,142 @@ public final class Installer {
     return this;
   }
 
+  /**
+   * Limits the size of the history written to the Activity's saved instance state. States that
+   * don't fit, starting with the oldest, are written to the {@link #stateStore} instead, and only
+   * a pointer to each is saved. That includes the top state if it alone exceeds the budget. After
+   * process death, each is read back the first time its key needs it. Use this to avoid
+   * {@link android.os.TransactionTooLargeException} with deep histories.
+   * <p>
+   * States are written on the main thread as the Activity saves its state, one record each, but
+   * only once: a state unchanged since it was spilled is saved as the same pointer again.
+   *
+   * @param maxBytes the parceled size allowed for persisted states in the saved instance state
+   */
+  @NonNull public Installer savedStateBudget(int maxBytes) {
+    checkArgument(maxBytes > 0, "maxBytes must be positive");
+    this.savedStateBudget = maxBytes;
+    return this;
+  }
+
+  /**
+   * Sets what Flow releases when the app is asked to trim memory. Defaults to
+   * {@link TrimMemoryPolicy#none()}.
+   */
+  @NonNull public Installer trimMemoryPolicy(@NonNull TrimMemoryPolicy policy) {
+    this.trimMemoryPolicy = checkNotNull(policy, "policy");
+    return this;
+  }
+
+  /**
+   * Sets where state moved off the Java heap is kept: by the {@link #savedStateBudget}, by
+   * {@link TrimMemoryPolicy.Action#SPILL_BACKSTACK_STATE}, or when {@link #parkBackStackStates
+   * parking} back stack states. Defaults to a {@link FileStateStore} in app-private storage that
+   * is excluded from backups.
+   */
+  @NonNull public Installer stateStore(@NonNull StateStore store) {
+    this.stateStore = checkNotNull(store, "store");
+    return this;
+  }
+
+  /**
+   * Moves the saved state of keys below the top of the history to the {@link #stateStore} once
+   * each navigation completes, if it takes up at least the given number of bytes. It is read back
+   * when the key is next shown. Use this to keep the heap flat in deep histories of heavy screens.
+   *
+   * @param minBytes the estimated size at which a state is moved off the heap
+   */
+  @NonNull public Installer parkBackStackStates(int minBytes) {
+    checkArgument(minBytes > 0, "minBytes must be positive");
+    this.parkThreshold = minBytes;
+    return this;
+  }
+
+  /**
+   * Records the history each time navigation completes, and restores it when the Activity is
+   * next created without saved instance state or a history in its Intent, instead of starting at
+   * the {@link #defaultKey}. This survives crashes and the app being swiped from recents, which
+   * lose the saved instance state. Only keys are restored, not their {@link State}. The journal is
+   * cleared when the Activity finishes.
+   * <p>
+   * The history is written to a memory-mapped log in app-private storage, on a background thread,
+   * and read back on it while the Activity is created. Requires a {@link #keyParceler}.
+   * <p>
+   * Restoring the history that was on screen is also restoring whatever crashed it. So a replayed
+   * history is dropped, and the app starts at the default key, if the process dies twice in a row
+   * after replaying it without recording a new history or saving instance state in between. The
+   * cost is that a history which is replayed and then killed twice in the foreground for any
+   * other reason, before the user navigates, is dropped too.
+   */
+  @NonNull public Installer historyJournal() {
+    this.journalHistory = true;
+    return this;
+  }
+
+  /** Like {@link #historyJournal()}, recording the history to the given store. */
+  @NonNull public Installer historyJournal(@NonNull StateStore store) {
+    this.journalStore = checkNotNull(store, "store");
+    this.journalHistory = true;
+    return this;
+  }
+
+  /**
+   * Shares service scopes with the other Activities attached to the given host, instead of
+   * building this Activity's own. ServicesFactories are then added to the host, not here.
+   */
+  @NonNull public Installer host(@NonNull FlowHost host) {
+    this.host = checkNotNull(host, "host");
+    return this;
+  }
+
+  /**
+   * Decides how Flow outlives configuration changes. By default it is kept in a retained,
+   * headless {@link android.app.Fragment}. Pass false to do without the Fragment, whose
+   * transaction and lookups add to the cost of creating the Activity: Flow then follows the
+   * Activity with {@link Application.ActivityLifecycleCallbacks}, and is kept in memory while
+   * the Activity is recreated.
+   */
+  @NonNull public Installer retainWithFragment(boolean retain) {
+    this.retainWithFragment = retain;
+    return this;
+  }
+
+  /**
+   * By default the dispatcher receives a bootstrap {@link Traversal} each time the Activity
+   * resumes, and must short-circuit it if nothing changed. Pass false to skip that traversal
+   * when the dispatcher already completed one to the current history. A new dispatcher, e.g.
+   * after a configuration change, is always bootstrapped.
+   */
+  @NonNull public Installer redispatchOnResume(boolean redispatch) {
+    this.redispatchOnResume = redispatch;
+    return this;
+  }
+
+  /**
+   * Pass true to dispatch navigation at the start of the next frame, rather than from within
+   * whatever callback requested it. Navigation requested before that frame, e.g. by several
+   * handlers of one input event, is then dispatched as a single traversal to where the last of
+   * it leads: forward if that extends the history, backward if it is a prefix of it, otherwise as
+   * a replacement. Off by default. Shorthand for {@link #scheduler} with
+   * {@link Scheduler#nextFrame()}.
+   */
+  @NonNull public Installer frameAlignedDispatch(boolean aligned) {
+    this.scheduler = aligned ? Scheduler.nextFrame() : Scheduler.immediate();
+    return this;
+  }
+
+  /** Decides when traversals execute. Defaults to {@link Scheduler#immediate()}. */
+  @NonNull public Installer scheduler(@NonNull Scheduler scheduler) {
+    this.scheduler = checkNotNull(scheduler, "scheduler");
+    return this;
+  }
+
+  /** Marks the phases of Flow's work, e.g. for systrace. Defaults to {@link Tracer#none()}. */
+  @NonNull public Installer tracer(@NonNull Tracer tracer) {
+    this.tracer = checkNotNull(tracer, "tracer");
+    return this;
+  }
+
   /**
    * Applies a factory when creating a Context associated with a given key.
    *
@@ -65,7 +215,16 @@ public final class Installer {
   }
 
   @NonNull public Context install() {
-    if (InternalLifecycleIntegration.find(activity) != null) {
+    tracer.beginSection(Tracer.INSTALL);
+    try {
+      return doInstall();
+    } finally {
+      tracer.endSection();
+    }
+  }
+
+  private Context doInstall() {
+    if (LifecycleDelegate.find(activity) != null) {
       throw new IllegalStateException("Flow is already installed in this Activity.");
     }
     Dispatcher dispatcher = this.dispatcher;
@@ -77,9 +236,40 @@ public final class Installer {
 
     final History defaultHistory = History.single(defState);
     final Application app = (Application) baseContext.getApplicationContext();
-    final KeyManager keyManager = new KeyManager(contextFactories);
-    InternalLifecycleIntegration.install(app, activity, parceler, defaultHistory, dispatcher,
-        keyManager);
+    final KeyManager keyManager;
+    if (host != null) {
+      checkArgument(contextFactories.isEmpty(),
+          "With a FlowHost, add ServicesFactories to the host instead");
+      keyManager = new KeyManager(host.scopes);
+    } else {
+      keyManager = new KeyManager(contextFactories);
+    }
+    final boolean spills = savedStateBudget > 0
+        || parkThreshold > 0
+        || trimMemoryPolicy.requires(TrimMemoryPolicy.Action.SPILL_BACKSTACK_STATE);
+    StateSpillover spillover = null;
+    if (spills) {
+      spillover = new StateSpillover(
+          stateStore == null ? StateSpillover.defaultStore(app) : stateStore);
+    }
+    HistoryJournal journal = null;
+    if (journalHistory) {
+      checkNotNull(parceler, "historyJournal requires a KeyParceler");
+      journal = new HistoryJournal(
+          journalStore == null ? HistoryJournal.defaultStore(app) : journalStore,
+          activity.getClass().getName(), parceler, HistoryJournal.writer());
+      journal.prefetch();
+    }
+    LifecycleDelegate delegate = new LifecycleDelegate(parceler, defaultHistory, keyManager,
+        spillover, savedStateBudget, parkThreshold, trimMemoryPolicy, journal, tracer);
+    delegate.dispatcher = dispatcher;
+    delegate.redispatchOnResume = redispatchOnResume;
+    delegate.scheduler = scheduler;
+    if (retainWithFragment) {
+      InternalLifecycleIntegration.install(app, activity, delegate);
+    } else {
+      ActivityLifecycleIntegration.install(app, activity, delegate);
+    }
     return new InternalContextWrapper(baseContext, activity);
   }
 }
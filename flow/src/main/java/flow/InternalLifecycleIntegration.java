@@ -21,12 +21,8 @@ import android.app.Application;
 import android.app.Fragment;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Parcelable;
-import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import java.util.ArrayList;
 
-import static flow.Preconditions.checkArgument;
 import static flow.Preconditions.checkNotNull;
 
 /**
@@ -37,23 +33,17 @@ public final class InternalLifecycleIntegration extends Fragment {
   static final String PERSISTENCE_KEY =
       InternalLifecycleIntegration.class.getSimpleName() + "_state";
   static final String INTENT_KEY = InternalLifecycleIntegration.class.getSimpleName() + "_history";
+  /** Kept out of the {@link #INTENT_KEY} Bundle, so that it can be read without unparceling it. */
+  static final String HANDOFF_KEY = InternalLifecycleIntegration.class.getSimpleName() + "_handoff";
+  static final String SPILLOVER_KEY =
+      InternalLifecycleIntegration.class.getSimpleName() + "_spillover";
 
   static @Nullable InternalLifecycleIntegration find(Activity activity) {
     return (InternalLifecycleIntegration) activity.getFragmentManager().findFragmentByTag(TAG);
   }
 
-  static @NonNull InternalLifecycleIntegration require(Activity activity) {
-    Fragment fragmentByTag = find(activity);
-    if (fragmentByTag == null) {
-      throw new IllegalStateException("Flow services are not yet available. Do not make this call "
-          + "before receiving Activity#onResume().");
-    }
-    return (InternalLifecycleIntegration) fragmentByTag;
-  }
-
   static void install(final Application app, final Activity activity,
-      @Nullable final KeyParceler parceler, final History defaultHistory,
-      final Dispatcher dispatcher, final KeyManager keyManager) {
+      final LifecycleDelegate delegate) {
     app.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
       @Override public void onActivityCreated(Activity a, Bundle savedInstanceState) {
         if (a == activity) {
@@ -62,14 +52,12 @@ public final class InternalLifecycleIntegration extends Fragment {
           if (newFragment) {
             fragment = new InternalLifecycleIntegration();
           }
-          if (fragment.keyManager == null) {
-            fragment.defaultHistory = defaultHistory;
-            fragment.parceler = parceler;
-            fragment.keyManager = keyManager;
+          if (fragment.delegate == null) {
+            fragment.delegate = delegate;
           }
           // We always replace the dispatcher because it frequently references the Activity.
-          fragment.dispatcher = dispatcher;
-          fragment.intent = a.getIntent();
+          fragment.delegate.dispatcher = delegate.dispatcher;
+          fragment.delegate.intent = a.getIntent();
           if (newFragment) {
             activity.getFragmentManager() //
                 .beginTransaction() //
@@ -100,129 +88,71 @@ public final class InternalLifecycleIntegration extends Fragment {
     });
   }
 
-  Flow flow;
-  KeyManager keyManager;
-  @Nullable KeyParceler parceler;
-  History defaultHistory;
-  Dispatcher dispatcher;
-  Intent intent;
-  private boolean dispatcherSet;
-
-  public InternalLifecycleIntegration() {
-    super();
-    setRetainInstance(true);
-  }
-
   static void addHistoryToIntent(Intent intent, History history, KeyParceler parceler) {
     Bundle bundle = new Bundle();
-    ArrayList<Parcelable> parcelables = new ArrayList<>(history.size());
-    for (Object key : history.framesFromBottom()) {
-      parcelables.add(State.empty(key).toBundle(parceler));
-    }
-    bundle.putParcelableArrayList(PERSISTENCE_KEY, parcelables);
+    HistoryEncoder.encodeKeys(bundle, history, parceler);
     intent.putExtra(INTENT_KEY, bundle);
+    intent.putExtra(HANDOFF_KEY, HistoryHandoff.put(history));
+  }
+
+  /**
+   * @return the history in the given Intent: the sender's own instance if it was sent from this
+   * process, or else one read from its parceled copy
+   */
+  static History historyFromIntent(Intent intent, @Nullable KeyParceler parceler,
+      KeyManager keyManager) {
+    History handedOff = HistoryHandoff.take(intent.getStringExtra(HANDOFF_KEY));
+    if (handedOff != null) return handedOff;
+
+    checkNotNull(parceler,
+        "Intent has a Flow history extra, but Flow was not installed with a KeyParceler");
+    History.Builder builder = History.emptyBuilder();
+    // Intents carry keys only, never spilled state.
+    HistoryEncoder.decode(intent.<Bundle>getParcelableExtra(INTENT_KEY), parceler, builder,
+        keyManager, null);
+    return builder.build();
   }
 
-  void onNewIntent(Intent intent) {
-    if (intent.hasExtra(INTENT_KEY)) {
-      checkNotNull(parceler,
-          "Intent has a Flow history extra, but Flow was not installed with a KeyParceler");
-      History.Builder builder = History.emptyBuilder();
-      load((Bundle) intent.getParcelableExtra(INTENT_KEY), parceler, builder, keyManager);
-      flow.setHistory(builder.build(), Direction.REPLACE);
-    }
+  LifecycleDelegate delegate;
+
+  public InternalLifecycleIntegration() {
+    super();
+    setRetainInstance(true);
   }
 
   @Override public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
-    if (flow == null) {
-      History savedHistory = null;
-      if (savedInstanceState != null && savedInstanceState.containsKey(INTENT_KEY)) {
-        checkNotNull(parceler, "no KeyParceler installed");
-        History.Builder builder = History.emptyBuilder();
-        Bundle bundle = savedInstanceState.getParcelable(INTENT_KEY);
-        load(bundle, parceler, builder, keyManager);
-        savedHistory = builder.build();
-      }
-      History history = selectHistory(intent, savedHistory, defaultHistory, parceler, keyManager);
-      flow = new Flow(keyManager, history);
-      flow.setDispatcher(dispatcher, false);
-    } else {
-      flow.setDispatcher(dispatcher, true);
-    }
-    dispatcherSet = true;
+    delegate.onActivityCreated(savedInstanceState);
   }
 
   @Override public void onResume() {
     super.onResume();
-    if (!dispatcherSet) {
-      flow.setDispatcher(dispatcher, true);
-      dispatcherSet = true;
-    }
+    delegate.onResume();
   }
 
   @Override public void onPause() {
-    flow.removeDispatcher(dispatcher);
-    dispatcherSet = false;
+    delegate.onPause();
     super.onPause();
   }
 
   @Override public void onDestroy() {
-    keyManager.tearDown(flow.getHistory().top());
+    delegate.onDestroy(getActivity().isFinishing());
     super.onDestroy();
   }
 
-  @Override public void onSaveInstanceState(Bundle outState) {
-    super.onSaveInstanceState(outState);
-    checkArgument(outState != null, "outState may not be null");
-    if (parceler == null) {
-      return;
-    }
-
-    Bundle bundle = new Bundle();
-    save(bundle, parceler, flow.getFilteredHistory(), keyManager);
-    if (!bundle.isEmpty()) {
-      outState.putParcelable(INTENT_KEY, bundle);
-    }
-  }
-
-  private static History selectHistory(Intent intent, History saved, History defaultHistory,
-      @Nullable KeyParceler parceler, KeyManager keyManager) {
-    if (saved != null) {
-      return saved;
-    }
-    if (intent != null && intent.hasExtra(INTENT_KEY)) {
-      checkNotNull(parceler,
-          "Intent has a Flow history extra, but Flow was not installed with a KeyParceler");
-      History.Builder history = History.emptyBuilder();
-      load(intent.<Bundle>getParcelableExtra(INTENT_KEY), parceler, history, keyManager);
-      return history.build();
-    }
-    return defaultHistory;
+  /** Unlike onDestroy, also called when the Activity is recreated for a configuration change. */
+  @Override public void onDetach() {
+    delegate.onActivityDestroyed(getActivity());
+    super.onDetach();
   }
 
-  private static void save(Bundle bundle, KeyParceler parceler, History history,
-      KeyManager keyManager) {
-    ArrayList<Parcelable> parcelables = new ArrayList<>(history.size());
-    for (Object key : history.framesFromBottom()) {
-      if (!key.getClass().isAnnotationPresent(NotPersistent.class)) {
-        parcelables.add(keyManager.getState(key).toBundle(parceler));
-      }
-    }
-    bundle.putParcelableArrayList(PERSISTENCE_KEY, parcelables);
+  @Override public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    delegate.onTrimMemory(level);
   }
 
-  private static void load(Bundle bundle, KeyParceler parceler, History.Builder builder,
-      KeyManager keyManager) {
-    if (!bundle.containsKey(PERSISTENCE_KEY)) return;
-    ArrayList<Parcelable> stateBundles = bundle.getParcelableArrayList(PERSISTENCE_KEY);
-    //noinspection ConstantConditions
-    for (Parcelable stateBundle : stateBundles) {
-      State state = State.fromBundle((Bundle) stateBundle, parceler);
-      builder.push(state.getKey());
-      if (!keyManager.hasState(state.getKey())) {
-        keyManager.addState(state);
-      }
-    }
+  @Override public void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    delegate.onSaveInstanceState(outState);
   }
 }
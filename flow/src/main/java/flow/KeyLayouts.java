@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Square Inc.
+ * Copyright 2017 Square Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,24 +14,16 @@
  * limitations under the License.
  */
 
-package flow.sample.basic;
+package flow;
 
-import android.os.Parcelable;
+import android.support.annotation.LayoutRes;
 import android.support.annotation.NonNull;
-import flow.KeyParceler;
 
 /**
- * Assumes states are {@link Parcelable}.
- *
- * A more realistic implementation might rely on a library like auto-value-parcel,
- * auto-parcel, or parceler.
- * */
-final class BasicKeyParceler implements KeyParceler {
-  @NonNull @Override public Parcelable toParcelable(@NonNull Object key) {
-    return (Parcelable) key;
-  }
-
-  @NonNull @Override public Object toKey(@NonNull Parcelable parcelable) {
-    return parcelable;
-  }
+ * Chooses the layout of each key. flow-compiler generates one from the key classes annotated
+ * {@link Layout}.
+ */
+public interface KeyLayouts {
+  /** @throws IllegalArgumentException if the key has no layout */
+  @LayoutRes int layoutFor(@NonNull Object key);
 }
@@ -16,30 +16,34 @@
 
 package flow;
 
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import java.util.ArrayList;
+import android.app.Activity;
+import android.content.Context;
+import android.content.ContextWrapper;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-class KeyManager {
-  static final Object ROOT_KEY = new Object() {
-    @Override public String toString() {
-      return KeyManager.class.getSimpleName() + ".ROOT";
-    }
-  };
-  private final Map<Object, ManagedServices> managedServices = new LinkedHashMap<>();
-  private final Map<Object, State> states = new LinkedHashMap<>();
-
-  private final List<ServicesFactory> servicesFactories = new ArrayList<>();
+class KeyManager implements FlowEngine.Scopes, ServiceScopes.Listener {
+  private Map<Object, State> states = new LinkedHashMap<>();
+  private final ServiceScopes scopes;
+  /**
+   * The Context of each scope over each base Context, kept until the scope is torn down or the
+   * base's Activity is destroyed.
+   */
+  private final Map<Services, Map<Context, FlowContextWrapper>> contexts =
+      new IdentityHashMap<>();
 
   KeyManager(List<ServicesFactory> servicesFactories) {
-    this.servicesFactories.addAll(servicesFactories);
-    managedServices.put(ROOT_KEY, new ManagedServices(Services.ROOT_SERVICES));
+    this(new ServiceScopes(servicesFactories, 0));
   }
 
+  /** @param scopes shared with other KeyManagers if they belong to a {@link FlowHost} */
+  KeyManager(ServiceScopes scopes) {
+    this.scopes = scopes;
+    scopes.addListener(this);
+  }
 
   boolean hasState(Object key) {
     return states.containsKey(key);
@@ -58,98 +62,93 @@ class KeyManager {
     return state;
   }
 
+  MemoryReport getMemoryReport(int historyDepth) {
+    Map<Object, Long> stateBytes = new LinkedHashMap<>(states.size());
+    for (State state : states.values()) {
+      stateBytes.put(state.getKey(), (long) state.estimateSize());
+    }
+    return new MemoryReport(historyDepth, stateBytes, scopes.estimateSizes());
+  }
+
   void clearStatesExcept(List<Object> keep) {
-    Iterator<Object> keys = states.keySet().iterator();
-    while (keys.hasNext()) {
-      final Object key = keys.next();
-      if (!keep.contains(key)) keys.remove();
+    Iterator<Map.Entry<Object, State>> entries = states.entrySet().iterator();
+    while (entries.hasNext()) {
+      final Map.Entry<Object, State> entry = entries.next();
+      if (!keep.contains(entry.getKey())) {
+        entry.getValue().discard();
+        entries.remove();
+      }
     }
   }
 
+  /** Lets the ServicesFactories release memory from every live service scope. */
+  void trimServices(int level) {
+    scopes.trimServices(level);
+  }
+
+  /** Rebuilds internal maps, which never shrink on their own, to fit their current contents. */
+  void compact() {
+    states = new LinkedHashMap<>(states);
+    scopes.compact();
+  }
+
   Services findServices(Object key) {
-    final ManagedServices managed = managedServices.get(key);
-    if (managed == null) {
-      throw new IllegalStateException("No services currently exists for key " + key);
-    }
-    return managed.services;
+    return scopes.findServices(key);
   }
 
-  void setUp(Object key) {
-    Services parent = managedServices.get(ROOT_KEY).services;
-    if (key instanceof MultiKey) {
-      for (Object part : ((MultiKey) key).getKeys()) {
-        setUp(part);
-      }
-      ensureNode(parent, key).uses++;
-    } else if (key instanceof TreeKey) {
-      TreeKey treeKey = (TreeKey) key;
-      final Object parentKey = treeKey.getParentKey();
-      setUp(parentKey);
-      parent = managedServices.get(parentKey).services;
-      ensureNode(parent, key).uses++;
-    } else {
-      ensureNode(parent, key).uses++;
+  /**
+   * @return a Context of the given key's services over the given base, the same one each time
+   * for as long as both it and the scope are in use, so that its LayoutInflater is reused
+   */
+  Context findContext(Object key, Context baseContext) {
+    Services services = scopes.findServices(key);
+    Map<Context, FlowContextWrapper> byBase = contexts.get(services);
+    if (byBase == null) {
+      byBase = new LinkedHashMap<>();
+      contexts.put(services, byBase);
+    }
+    FlowContextWrapper context = byBase.get(baseContext);
+    if (context == null) {
+      context = new FlowContextWrapper(services, baseContext);
+      byBase.put(baseContext, context);
     }
+    return context;
   }
 
-  void tearDown(Object key) {
-    if (key instanceof MultiKey) {
-      decrementAndMaybeRemoveKey(key);
-      final List<Object> parts = ((MultiKey) key).getKeys();
-      final int count = parts.size();
-      for (int i = count - 1; i >= 0; i--) {
-        tearDown(parts.get(i));
-      }
-    } else if (key instanceof TreeKey) {
-      decrementAndMaybeRemoveKey(key);
-      TreeKey treeKey = (TreeKey) key;
-      tearDown(treeKey.getParentKey());
-    } else {
-      decrementAndMaybeRemoveKey(key);
-    }
+  @Override public void onTornDown(Services services) {
+    contexts.remove(services);
   }
 
-  @NonNull private ManagedServices ensureNode(@Nullable Services parent, Object key) {
-    ManagedServices node = managedServices.get(key);
-    if (node == null) {
-      // Bind the local key as a service.
-      @SuppressWarnings("ConstantConditions") //
-      Services.Binder binder = parent.extend(key);
-      // Add any services from the factories
-      int count = servicesFactories.size();
-      for (int i = 0; i < count; i++) {
-        servicesFactories.get(i).bindServices(binder);
+  /** Drops the Contexts made over the given Activity, or over Contexts that wrap it. */
+  void releaseContexts(Activity activity) {
+    for (Map<Context, FlowContextWrapper> byBase : contexts.values()) {
+      Iterator<Context> bases = byBase.keySet().iterator();
+      while (bases.hasNext()) {
+        if (wraps(bases.next(), activity)) bases.remove();
       }
-      node = new ManagedServices(binder.build());
-      managedServices.put(key, node);
     }
-    return node;
   }
 
-  private boolean decrementAndMaybeRemoveKey(Object key) {
-    ManagedServices node = managedServices.get(key);
-    node.uses--;
-    if (key != ROOT_KEY && node.uses == 0) {
-      int count = servicesFactories.size();
-      for (int i = count - 1; i >= 0; i--) {
-        servicesFactories.get(i).tearDownServices(node.services);
-      }
-      managedServices.remove(key);
-      return true;
-    }
-    if (node.uses < 0) {
-      throw new IllegalStateException("Over-decremented uses of key " + key);
+  /** Stops keeping Contexts, once the Flow is done. */
+  void release() {
+    scopes.removeListener(this);
+    contexts.clear();
+  }
+
+  private static boolean wraps(Context context, Activity activity) {
+    while (context != null) {
+      if (context == activity) return true;
+      if (!(context instanceof ContextWrapper)) return false;
+      context = ((ContextWrapper) context).getBaseContext();
     }
     return false;
   }
 
-  private static final class ManagedServices {
-    final Services services;
-    /** Includes uses as a leaf and as a direct parent. */
-    int uses = 0;
+  @Override public void setUp(Object key) {
+    scopes.setUp(key);
+  }
 
-    private ManagedServices(Services services) {
-      this.services = services;
-    }
+  @Override public void tearDown(Object key) {
+    scopes.tearDown(key);
   }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The keys written to or read from a parcel so far, so that a {@link StreamingKeyParceler} can
+ * write a key that appears again, e.g. the shared parent of several {@link TreeKey}s, as a
+ * reference to its first occurrence. Writers and readers must {@link #add} keys in the same order:
+ * after each key that is written out in full, and not after references.
+ */
+public final class KeyRefs {
+  private Map<Object, Integer> indexes;
+  private List<Object> keys;
+
+  /** @return the index of a key equal to the given one, or -1 if none was added. */
+  public int indexOf(@NonNull Object key) {
+    if (indexes == null) return -1;
+    Integer index = indexes.get(key);
+    return index == null ? -1 : index;
+  }
+
+  public void add(@NonNull Object key) {
+    if (keys == null) {
+      indexes = new HashMap<>();
+      keys = new ArrayList<>();
+    }
+    if (!indexes.containsKey(key)) indexes.put(key, keys.size());
+    keys.add(key);
+  }
+
+  /** @return the key added at the given index. */
+  @NonNull public Object get(int index) {
+    if (keys == null || index < 0 || index >= keys.size()) {
+      throw new IllegalArgumentException("No key at " + index);
+    }
+    return keys.get(index);
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.LayoutRes;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Applied to a key class, names the layout that shows it. The flow-compiler annotation processor
+ * collects these into a {@link KeyLayouts} table, which {@link LayoutDispatcher} and
+ * {@link AsyncKeyDispatcher} can look layouts up in. The table is named
+ * {@code GeneratedKeyLayouts}, in the package that the annotated classes of the module share, or
+ * by the {@code flow.keyLayouts} annotation processor option.
+ * <p>
+ * Layouts are looked up by the exact class of the key: subclasses of an annotated class need
+ * their own annotation.
+ * <p>
+ * The layout must be a constant, which the {@code R} fields of Android library modules are not:
+ * annotate keys in the application module, or give library keys a {@link KeyLayouts} of their
+ * own.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface Layout {
+  @LayoutRes int value();
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * A Dispatcher that shows the layout of the top key in a container, looking it up in a
+ * {@link KeyLayouts} table such as the one flow-compiler generates from {@link Layout}
+ * annotations. It saves the state of the outgoing view, restores that of the incoming one, and
+ * does nothing if the top key is unchanged.
+ */
+public final class LayoutDispatcher implements Dispatcher {
+  /** Views are created with Contexts over the container's Context, and added to it. */
+  @NonNull public static Dispatcher create(@NonNull ViewGroup container,
+      @NonNull KeyLayouts layouts) {
+    return new LayoutDispatcher(checkNotNull(container, "container"),
+        checkNotNull(layouts, "layouts"));
+  }
+
+  private final ViewGroup container;
+  private final KeyLayouts layouts;
+
+  private LayoutDispatcher(ViewGroup container, KeyLayouts layouts) {
+    this.container = container;
+    this.layouts = layouts;
+  }
+
+  @Override public void dispatch(@NonNull Traversal traversal,
+      @NonNull TraversalCallback callback) {
+    Object inKey = traversal.destination.top();
+    if (container.getChildCount() > 0) {
+      View outgoing = container.getChildAt(0);
+      if (inKey.equals(Flow.getKey(outgoing))) {
+        callback.onTraversalCompleted();
+        return;
+      }
+      if (traversal.origin != null && outgoing.getId() != View.NO_ID) {
+        traversal.getState(traversal.origin.top()).save(outgoing);
+      }
+      container.removeAllViews();
+    }
+
+    View incoming = LayoutInflater.from(traversal.createContext(inKey, container.getContext()))
+        .inflate(layouts.layoutFor(inKey), container, false);
+    container.addView(incoming);
+    traversal.getState(inKey).restore(incoming);
+    callback.onTraversalCompleted();
+  }
+}
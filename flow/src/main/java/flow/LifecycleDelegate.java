@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static flow.InternalLifecycleIntegration.INTENT_KEY;
+import static flow.InternalLifecycleIntegration.SPILLOVER_KEY;
+import static flow.Preconditions.checkArgument;
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Drives an Activity's {@link Flow} through the Activity's lifecycle, and outlives the Activity
+ * across configuration changes. Hosted by the retained {@link InternalLifecycleIntegration}
+ * Fragment, or by {@link ActivityLifecycleIntegration}.
+ */
+final class LifecycleDelegate {
+  static @Nullable LifecycleDelegate find(Activity activity) {
+    LifecycleDelegate delegate = ActivityLifecycleIntegration.find(activity);
+    if (delegate != null) return delegate;
+    InternalLifecycleIntegration fragment = InternalLifecycleIntegration.find(activity);
+    return fragment == null ? null : fragment.delegate;
+  }
+
+  static @NonNull LifecycleDelegate require(Activity activity) {
+    LifecycleDelegate delegate = find(activity);
+    if (delegate == null || delegate.flow == null) {
+      throw new IllegalStateException("Flow services are not yet available. Do not make this call "
+          + "before receiving Activity#onResume().");
+    }
+    return delegate;
+  }
+
+  final KeyManager keyManager;
+  @Nullable final KeyParceler parceler;
+  final History defaultHistory;
+  @Nullable final StateSpillover spillover;
+  final int savedStateBudget;
+  final int parkThreshold;
+  final TrimMemoryPolicy trimMemoryPolicy;
+  @Nullable final HistoryJournal journal;
+  final Tracer tracer;
+  Flow flow;
+  Dispatcher dispatcher;
+  boolean redispatchOnResume = true;
+  Scheduler scheduler = Scheduler.immediate();
+  Intent intent;
+  private boolean dispatcherSet;
+
+  LifecycleDelegate(@Nullable KeyParceler parceler, History defaultHistory, KeyManager keyManager,
+      @Nullable StateSpillover spillover, int savedStateBudget, int parkThreshold,
+      TrimMemoryPolicy trimMemoryPolicy, @Nullable HistoryJournal journal, Tracer tracer) {
+    this.parceler = parceler;
+    this.defaultHistory = defaultHistory;
+    this.keyManager = keyManager;
+    this.spillover = spillover;
+    this.savedStateBudget = savedStateBudget;
+    this.parkThreshold = parkThreshold;
+    this.trimMemoryPolicy = trimMemoryPolicy;
+    this.journal = journal;
+    this.tracer = tracer;
+  }
+
+  void onNewIntent(Intent intent) {
+    if (intent.hasExtra(INTENT_KEY)) {
+      flow.setHistory(InternalLifecycleIntegration.historyFromIntent(intent, parceler, keyManager),
+          Direction.REPLACE);
+    }
+  }
+
+  /** Called once the Activity is created, each time it is created. */
+  void onActivityCreated(@Nullable Bundle savedInstanceState) {
+    if (flow == null) {
+      tracer.beginSection(Tracer.CREATE);
+      try {
+        createFlow(savedInstanceState);
+      } finally {
+        tracer.endSection();
+      }
+    } else {
+      flow.setDispatcher(dispatcher, true);
+    }
+    dispatcherSet = true;
+  }
+
+  private void createFlow(@Nullable Bundle savedInstanceState) {
+    tracer.beginSection(Tracer.SELECT_HISTORY);
+    History history;
+    try {
+      History savedHistory = null;
+      Bundle bundle = null;
+      if (savedInstanceState != null && savedInstanceState.containsKey(INTENT_KEY)) {
+        checkNotNull(parceler, "no KeyParceler installed");
+        bundle = savedInstanceState.getParcelable(INTENT_KEY);
+      }
+      if (spillover != null) {
+        // Before any state is restored, so that the saved session's records are kept.
+        spillover.start(bundle == null ? null : bundle.getString(SPILLOVER_KEY));
+      }
+      if (bundle != null) {
+        History.Builder builder = History.emptyBuilder();
+        // Spilled states are restored as pointers, read the first time they are needed.
+        HistoryEncoder.decode(bundle, parceler, builder, keyManager, spillover);
+        if (!builder.isEmpty()) savedHistory = builder.build();
+      }
+      history = selectHistory(intent, savedHistory, defaultHistory, parceler, keyManager, journal);
+    } finally {
+      tracer.endSection();
+    }
+    flow = new Flow(keyManager, history);
+    flow.setTracer(tracer);
+    flow.setRedispatchOnResume(redispatchOnResume);
+    flow.setScheduler(scheduler);
+    if (journal != null) flow.setJournal(journal);
+    if (spillover != null && parkThreshold > 0) {
+      flow.parkBackStackStates(spillover, parkThreshold);
+    }
+    flow.setDispatcher(dispatcher, false);
+  }
+
+  void onResume() {
+    if (!dispatcherSet) {
+      flow.setDispatcher(dispatcher, true);
+      dispatcherSet = true;
+    }
+  }
+
+  void onPause() {
+    flow.removeDispatcher(dispatcher);
+    dispatcherSet = false;
+  }
+
+  /** Called when the Flow is done, i.e. not when the Activity is recreated with it. */
+  void onDestroy(boolean finishing) {
+    keyManager.tearDown(flow.getHistory().top());
+    if (spillover != null && finishing) {
+      // Releases anything spilled or parked for the history.
+      keyManager.clearStatesExcept(Collections.<Object>emptyList());
+      spillover.finish();
+    }
+    if (journal != null && finishing) {
+      journal.clear();
+    }
+    keyManager.release();
+  }
+
+  /** Called each time an Activity of the Flow is destroyed, including for configuration changes. */
+  void onActivityDestroyed(Activity activity) {
+    keyManager.releaseContexts(activity);
+  }
+
+  void onTrimMemory(int level) {
+    if (flow != null) {
+      flow.trimMemory(level, trimMemoryPolicy.actionsFor(level), spillover);
+    }
+  }
+
+  void onSaveInstanceState(Bundle outState) {
+    checkArgument(outState != null, "outState may not be null");
+    // Saving on the way to the background means the restored history didn't crash the app.
+    if (journal != null) journal.markHealthy();
+    if (parceler == null) {
+      return;
+    }
+
+    Bundle bundle = new Bundle();
+    save(bundle, parceler, flow.getFilteredHistory(), keyManager, spillover, savedStateBudget);
+    if (!bundle.isEmpty()) {
+      outState.putParcelable(INTENT_KEY, bundle);
+    }
+  }
+
+  private static History selectHistory(Intent intent, History saved, History defaultHistory,
+      @Nullable KeyParceler parceler, KeyManager keyManager, @Nullable HistoryJournal journal) {
+    if (saved != null) {
+      return saved;
+    }
+    if (intent != null && intent.hasExtra(INTENT_KEY)) {
+      return InternalLifecycleIntegration.historyFromIntent(intent, parceler, keyManager);
+    }
+    if (journal != null) {
+      History journaled = journal.read();
+      if (journaled != null) return journaled;
+    }
+    return defaultHistory;
+  }
+
+  private static void save(Bundle bundle, KeyParceler parceler, History history,
+      KeyManager keyManager, @Nullable StateSpillover spillover, int savedStateBudget) {
+    List<State> states = new ArrayList<>(history.size());
+    for (Object key : history.framesFromBottom()) {
+      if (KeyMetadata.isPersistent(key)) {
+        states.add(keyManager.getState(key));
+      }
+    }
+
+    if (spillover != null) {
+      bundle.putString(SPILLOVER_KEY, spillover.session());
+      if (savedStateBudget > 0) {
+        // Keep as many of the newest states as fit in the budget, spill the older ones, and the
+        // top one too if it alone is over budget. Spilled states are saved as pointers to their
+        // records. States already spilled are saved as pointers without being written again.
+        int size = 0;
+        spillover.beginBatch();
+        try {
+          for (int i = states.size() - 1; i >= 0; i--) {
+            State state = states.get(i);
+            size += state.parceledSize(parceler);
+            if (size > savedStateBudget) state.spill(spillover);
+          }
+        } finally {
+          spillover.endBatch();
+        }
+      }
+    }
+    HistoryEncoder.encode(bundle, states, parceler);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link StateStore} backed by an append-only log of records in a single file. Each record is
+ * an id and its data, or a tombstone marking the id removed. The index of live records is rebuilt
+ * by scanning the log when it is first used, and the log is rewritten without dead records once
+ * they outweigh the live ones.
+ */
+abstract class LogStateStore implements StateStore, Closeable {
+  /** The storage underneath the log. */
+  interface Log extends Closeable {
+    /**
+     * @return the position at which the next record will be appended. Until the log is first
+     * truncated, this may lie past the last record.
+     */
+    long end() throws IOException;
+
+    void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    void append(byte[] record) throws IOException;
+
+    /** Discards anything at or after the given position. */
+    void truncate(long position) throws IOException;
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int HEADER_SIZE = 8;
+  private static final int TOMBSTONE = -1;
+  private static final long COMPACTION_THRESHOLD = 64 * 1024;
+
+  private final File file;
+  private final Map<String, Entry> index = new HashMap<>();
+  @Nullable private Log log;
+  private long liveBytes;
+  private long deadBytes;
+
+  LogStateStore(File file) {
+    this.file = file;
+  }
+
+  /** Opens the given file, creating it if needed. */
+  abstract Log open(File file) throws IOException;
+
+  @Override public synchronized void put(@NonNull String id, @NonNull byte[] data)
+      throws IOException {
+    Log log = log();
+    long position = log.end();
+    byte[] record = record(id, data);
+    log.append(record);
+    discard(index.put(id, new Entry(position + record.length - data.length, data.length,
+        record.length)));
+    liveBytes += record.length;
+    maybeCompact();
+  }
+
+  @Nullable @Override public synchronized byte[] get(@NonNull String id) throws IOException {
+    Log log = log();
+    Entry entry = index.get(id);
+    if (entry == null) return null;
+    byte[] data = new byte[entry.length];
+    log.read(entry.position, data, 0, entry.length);
+    return data;
+  }
+
+  @Override public synchronized void remove(@NonNull String id) throws IOException {
+    Log log = log();
+    Entry entry = index.remove(id);
+    if (entry == null) return;
+    byte[] tombstone = record(id, null);
+    log.append(tombstone);
+    discard(entry);
+    deadBytes += tombstone.length;
+    maybeCompact();
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+      index.clear();
+    }
+  }
+
+  private Log log() throws IOException {
+    if (log == null) {
+      File parent = file.getParentFile();
+      if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Unable to create " + parent);
+      }
+      log = open(file);
+      scan(log);
+    }
+    return log;
+  }
+
+  private void scan(Log log) throws IOException {
+    index.clear();
+    liveBytes = 0;
+    deadBytes = 0;
+
+    byte[] header = new byte[HEADER_SIZE];
+    long end = log.end();
+    long position = 0;
+    while (position + HEADER_SIZE <= end) {
+      log.read(position, header, 0, HEADER_SIZE);
+      ByteBuffer buffer = ByteBuffer.wrap(header);
+      int idLength = buffer.getInt();
+      int dataLength = buffer.getInt();
+      // A zeroed header ends the log; anything else out of range is a torn write.
+      if (idLength <= 0 || dataLength < TOMBSTONE) break;
+      int recordLength = HEADER_SIZE + idLength + Math.max(dataLength, 0);
+      if (position + recordLength > end) break;
+
+      byte[] idBytes = new byte[idLength];
+      log.read(position + HEADER_SIZE, idBytes, 0, idLength);
+      String id = new String(idBytes, UTF_8);
+      if (dataLength == TOMBSTONE) {
+        discard(index.remove(id));
+        deadBytes += recordLength;
+      } else {
+        discard(index.put(id,
+            new Entry(position + HEADER_SIZE + idLength, dataLength, recordLength)));
+        liveBytes += recordLength;
+      }
+      position += recordLength;
+    }
+    log.truncate(position);
+  }
+
+  private void maybeCompact() throws IOException {
+    if (deadBytes < COMPACTION_THRESHOLD || deadBytes < liveBytes) return;
+
+    Log log = log();
+    Map<String, byte[]> live = new LinkedHashMap<>(index.size());
+    for (Map.Entry<String, Entry> entry : index.entrySet()) {
+      Entry value = entry.getValue();
+      byte[] data = new byte[value.length];
+      log.read(value.position, data, 0, value.length);
+      live.put(entry.getKey(), data);
+    }
+
+    File compacted = new File(file.getPath() + ".compact");
+    //noinspection ResultOfMethodCallIgnored
+    compacted.delete();
+    Log fresh = open(compacted);
+    try {
+      // The new file is empty, but its end is unknown until truncated, just as after a scan.
+      fresh.truncate(0);
+      for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+        fresh.append(record(entry.getKey(), entry.getValue()));
+      }
+    } finally {
+      fresh.close();
+    }
+
+    log.close();
+    this.log = null;
+    if (!compacted.renameTo(file)) {
+      throw new IOException("Unable to replace " + file + " with " + compacted);
+    }
+    log();
+  }
+
+  private void discard(@Nullable Entry entry) {
+    if (entry == null) return;
+    liveBytes -= entry.recordLength;
+    deadBytes += entry.recordLength;
+  }
+
+  private static byte[] record(String id, @Nullable byte[] data) {
+    byte[] idBytes = id.getBytes(UTF_8);
+    int dataLength = data == null ? 0 : data.length;
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + idBytes.length + dataLength);
+    record.putInt(idBytes.length);
+    record.putInt(data == null ? TOMBSTONE : data.length);
+    record.put(idBytes);
+    if (data != null) record.put(data);
+    return record.array();
+  }
+
+  private static final class Entry {
+    final long position;
+    final int length;
+    final int recordLength;
+
+    Entry(long position, int length, int recordLength) {
+      this.position = position;
+      this.length = length;
+      this.recordLength = recordLength;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Keeps state in an append-only log file that is mapped into memory. Reads and writes are memory
+ * copies rather than system calls, and the kernel writes dirty pages back on its own schedule,
+ * which makes this the cheapest store to write to on the main thread. The file is grown by
+ * doubling, so it may be up to twice the size of its contents.
+ */
+public final class MappedStateStore extends LogStateStore {
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  public MappedStateStore(@NonNull File file) {
+    super(checkNotNull(file, "file"));
+  }
+
+  @Override Log open(File file) throws IOException {
+    return new MappedLog(new RandomAccessFile(file, "rw"));
+  }
+
+  private static final class MappedLog implements Log {
+    private static final byte[] END_OF_LOG = new byte[8];
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long end;
+
+    MappedLog(RandomAccessFile file) throws IOException {
+      this.file = file;
+      long capacity = Math.max(file.length(), INITIAL_CAPACITY);
+      map(capacity);
+      // Unknown until the log is scanned and truncated; the zeroed tail of the file ends the scan.
+      end = capacity;
+    }
+
+    @Override public long end() {
+      return end;
+    }
+
+    @Override public void read(long position, byte[] buffer, int offset, int length) {
+      ByteBuffer view = this.buffer.duplicate();
+      view.position((int) position);
+      view.get(buffer, offset, length);
+    }
+
+    @Override public void append(byte[] record) throws IOException {
+      long required = end + record.length + END_OF_LOG.length;
+      if (required > buffer.capacity()) {
+        map(Math.max(required, 2L * buffer.capacity()));
+      }
+      buffer.position((int) end);
+      buffer.put(record);
+      end += record.length;
+      buffer.put(END_OF_LOG);
+    }
+
+    @Override public void truncate(long position) {
+      end = position;
+      if (end + END_OF_LOG.length <= buffer.capacity()) {
+        buffer.position((int) end);
+        buffer.put(END_OF_LOG);
+      }
+    }
+
+    @Override public void close() throws IOException {
+      buffer.force();
+      file.close();
+    }
+
+    private void map(long capacity) throws IOException {
+      if (capacity > Integer.MAX_VALUE) throw new IOException("State log is too large");
+      if (file.length() < capacity) file.setLength(capacity);
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+  }
+}
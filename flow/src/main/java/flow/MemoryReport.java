@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of the memory Flow is holding on to, from {@link Flow#getMemoryReport()}. Sizes are
+ * estimates in bytes: {@link State}s are measured by their parceled size, and services by
+ * {@link ServicesFactory#estimateSize}.
+ */
+public final class MemoryReport {
+  private final int historyDepth;
+  private final Map<Object, Long> stateBytes;
+  private final Map<Object, Long> servicesBytes;
+
+  MemoryReport(int historyDepth, Map<Object, Long> stateBytes, Map<Object, Long> servicesBytes) {
+    this.historyDepth = historyDepth;
+    this.stateBytes = Collections.unmodifiableMap(new LinkedHashMap<>(stateBytes));
+    this.servicesBytes = Collections.unmodifiableMap(new LinkedHashMap<>(servicesBytes));
+  }
+
+  public int getHistoryDepth() {
+    return historyDepth;
+  }
+
+  /** Estimated size of the retained {@link State} of each key, in the order they were created. */
+  @NonNull public Map<Object, Long> getStateBytesByKey() {
+    return stateBytes;
+  }
+
+  /** Estimated size of the live services of each key, as reported by the ServicesFactories. */
+  @NonNull public Map<Object, Long> getServicesBytesByKey() {
+    return servicesBytes;
+  }
+
+  /** @return the estimated size of both the state and the services of the given key. */
+  public long getBytes(@NonNull Object key) {
+    return valueOrZero(stateBytes.get(key)) + valueOrZero(servicesBytes.get(key));
+  }
+
+  public long getStateBytes() {
+    return sum(stateBytes);
+  }
+
+  public long getServicesBytes() {
+    return sum(servicesBytes);
+  }
+
+  public long getTotalBytes() {
+    return getStateBytes() + getServicesBytes();
+  }
+
+  @Override public String toString() {
+    return "MemoryReport{historyDepth=" + historyDepth
+        + ", stateBytes=" + stateBytes
+        + ", servicesBytes=" + servicesBytes
+        + '}';
+  }
+
+  private static long sum(Map<Object, Long> bytes) {
+    long total = 0;
+    for (Long value : bytes.values()) {
+      total += value;
+    }
+    return total;
+  }
+
+  private static long valueOrZero(Long value) {
+    return value == null ? 0 : value;
+  }
+}
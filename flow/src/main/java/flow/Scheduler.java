@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+import java.util.concurrent.Executor;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Decides when Flow executes traversals: when navigation is requested, and when the traversal
+ * before it completes. Install with {@link Installer#scheduler}.
+ * <p>
+ * Flow is not thread-safe, so work must run one piece at a time on the thread Flow is used from.
+ * Unless the scheduler is {@link #immediate()}, navigation requested before the scheduled work
+ * runs is dispatched as one traversal, to where the last of it leads and in its direction.
+ * Bootstrap traversals, which bring a new Dispatcher up to date, are always executed at once.
+ * <p>
+ * Implement your own to drive Flow deterministically, e.g. from a test's virtual clock.
+ */
+public abstract class Scheduler {
+  private static final Scheduler IMMEDIATE = new Scheduler() {
+    @Override public void schedule(@NonNull Runnable work) {
+      work.run();
+    }
+  };
+
+  /** Flow's default: runs work at once, within the call that requested it. */
+  @NonNull public static Scheduler immediate() {
+    return IMMEDIATE;
+  }
+
+  /** Posts work to the main thread's Looper. */
+  @NonNull public static Scheduler mainLooper() {
+    final Handler handler = new Handler(Looper.getMainLooper());
+    return new Scheduler() {
+      @Override public void schedule(@NonNull Runnable work) {
+        handler.post(work);
+      }
+    };
+  }
+
+  /**
+   * Runs work at the start of the next frame: through {@link Choreographer} on API 16 and up,
+   * and as {@link #mainLooper()} below that.
+   */
+  @NonNull public static Scheduler nextFrame() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return mainLooper();
+    return new Scheduler() {
+      @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+      @Override public void schedule(@NonNull final Runnable work) {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+          @Override public void doFrame(long frameTimeNanos) {
+            work.run();
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Hands work to the given Executor, which must run it on the thread Flow is used from, such as
+   * an event loop.
+   */
+  @NonNull public static Scheduler executor(@NonNull final Executor executor) {
+    checkNotNull(executor, "executor");
+    return new Scheduler() {
+      @Override public void schedule(@NonNull Runnable work) {
+        executor.execute(work);
+      }
+    };
+  }
+
+  /** Runs the given work, now or later. */
+  public abstract void schedule(@NonNull Runnable work);
+}
@@ -32,30 +32,56 @@ public class State {
   private static final String BUNDLE = "BUNDLE";
   private static final String VIEW_STATE_PREFIX = "VIEW_STATE_";
   private static final String KEY = "KEY";
+  private static final String CONTENTS = "CONTENTS";
+  private static final String SPILLED = "SPILLED";
 
   /** Creates a State instance that has no state and is effectively immutable. */
   @NonNull public static State empty(@NonNull final Object key) {
     return new EmptyState(key);
   }
 
-  @NonNull static State fromBundle(@NonNull Bundle savedState, @NonNull KeyParceler parceler) {
+  /**
+   * Only the key is decoded immediately. View state and the bundle are decoded the first time they
+   * are needed, so that restoring a deep history costs little more than restoring its top.
+   *
+   * @param spillover where the state was spilled, if it was saved while spilled
+   */
+  @NonNull static State fromBundle(@NonNull Bundle savedState, @NonNull KeyParceler parceler,
+      @Nullable StateSpillover spillover) {
     Object key = parceler.toKey(savedState.getParcelable(KEY));
     State state = new State(key);
-    int[] viewIds = checkNotNull(savedState.getIntArray(VIEW_STATE_IDS), "Null view state ids?");
-    for (int viewId : viewIds) {
-      SparseArray<Parcelable> viewState =
-          savedState.getSparseParcelableArray(VIEW_STATE_PREFIX + viewId);
-      if (viewState != null) {
-        state.viewStateById.put(viewId, viewState);
-      }
-    }
-    state.bundle = savedState.getBundle(BUNDLE);
+    state.restoreFrom(savedState, spillover);
+    return state;
+  }
+
+  /**
+   * Like {@link #fromBundle}, for states encoded by {@link #toContentsBundle} whose key was
+   * encoded separately.
+   */
+  @NonNull static State fromContentsBundle(@NonNull Object key, @NonNull Bundle savedState,
+      @Nullable StateSpillover spillover) {
+    State state = new State(key);
+    state.restoreFrom(savedState, spillover);
     return state;
   }
 
   private final Object key;
   @Nullable private Bundle bundle;
   @NonNull private Map<Integer, SparseArray<Parcelable>> viewStateById = new LinkedHashMap<>();
+  /** Set by anything that changes this state, cleared when {@link #toBundle} encodes it. */
+  private boolean dirty = true;
+  /** The result of the last call to {@link #toBundle}, reused until this state is dirty. */
+  @Nullable private Bundle encoded;
+  private int encodedSize = -1;
+  private int contentsSize = -1;
+  /** False while view state and bundle remain packed in {@link #encoded} or spilled to disk. */
+  private boolean decoded = true;
+  @Nullable private StateSpillover spillover;
+  /**
+   * Names the copy of view state and bundle last spilled, while they are unchanged since. The
+   * state is saved as this pointer rather than by reading the copy back.
+   */
+  @Nullable private String spillToken;
 
   State(Object key) {
     // No external instances.
@@ -75,12 +101,15 @@ public class State {
     int viewId = view.getId();
     Preconditions.checkArgument(viewId != 0,
         "Cannot save state for View with no id " + view.getClass().getSimpleName());
+    decode();
     SparseArray<Parcelable> state = new SparseArray<>();
     view.saveHierarchyState(state);
     viewStateById.put(viewId, state);
+    markDirty();
   }
 
   public void restore(@NonNull View view) {
+    decode();
     SparseArray<Parcelable> viewState = viewStateById.get(view.getId());
     if (viewState != null) {
       view.restoreHierarchyState(viewState);
@@ -88,16 +117,123 @@ public class State {
   }
 
   public void setBundle(@Nullable Bundle bundle) {
+    decode();
     this.bundle = bundle;
+    markDirty();
   }
 
   @Nullable public Bundle getBundle() {
+    decode();
+    if (bundle != null) {
+      // The caller may change the bundle. The encoding holds the same instance and sees that, but
+      // sizes measured and copies spilled before would not.
+      releaseSpill();
+      contentsSize = -1;
+      encodedSize = -1;
+    }
     return bundle;
   }
 
+  /**
+   * Encodes this state for persistence. States that have not been changed via {@link #save} or
+   * {@link #setBundle} since the last call return the same Bundle again without re-encoding.
+   */
   Bundle toBundle(KeyParceler parceler) {
+    if (!dirty && encoded != null && encoded.containsKey(KEY)) return encoded;
+
     Bundle outState = new Bundle();
     outState.putParcelable(KEY, parceler.toParcelable(getKey()));
+    putContents(outState);
+    encoded = outState;
+    encodedSize = -1;
+    dirty = false;
+    return outState;
+  }
+
+  /** Like {@link #toBundle}, leaving out the key for histories that encode keys separately. */
+  Bundle toContentsBundle() {
+    if (!dirty && encoded != null && !encoded.containsKey(KEY)) return encoded;
+
+    Bundle outState = new Bundle();
+    putContents(outState);
+    if (dirty || encoded == null) {
+      encoded = outState;
+      encodedSize = -1;
+      dirty = false;
+    }
+    return outState;
+  }
+
+  /** @return the parceled size of {@link #toBundle}, measured once per encoding. */
+  int parceledSize(KeyParceler parceler) {
+    Bundle bundle = toBundle(parceler);
+    if (encodedSize < 0) encodedSize = StateSpillover.sizeOf(bundle);
+    return encodedSize;
+  }
+
+  /**
+   * @return the parceled size of this state's view state and bundle, a rough measure of the heap
+   * it holds. Measured once per change.
+   */
+  int estimateSize() {
+    if (spillToken != null && !decoded) return 0;
+    if (contentsSize < 0) {
+      contentsSize = StateSpillover.sizeOf(contents());
+    }
+    return contentsSize;
+  }
+
+  private void markDirty() {
+    releaseSpill();
+    dirty = true;
+    contentsSize = -1;
+  }
+
+  /** Deletes the spilled copy, which no longer matches what is on the heap. */
+  private void releaseSpill() {
+    if (spillToken == null) return;
+    //noinspection ConstantConditions
+    spillover.delete(spillToken);
+    spillToken = null;
+    // The saved form may be a pointer to it.
+    dirty = true;
+  }
+
+  private void restoreFrom(Bundle savedState, @Nullable StateSpillover spillover) {
+    String token = savedState.getString(SPILLED);
+    if (token != null) {
+      // Without the spillover, the state is lost, as if it was never saved.
+      if (spillover == null) return;
+      this.spillover = spillover;
+      spillToken = token;
+    }
+    // Until it changes, the state can be saved again as it was restored.
+    encoded = savedState;
+    dirty = false;
+    decoded = false;
+  }
+
+  private void putContents(Bundle outState) {
+    if (spillToken != null) {
+      outState.putString(SPILLED, spillToken);
+    } else {
+      // View state goes in a nested Bundle, which the framework leaves parceled until it is read.
+      outState.putBundle(CONTENTS, contents());
+    }
+  }
+
+  /** @return the encoded view state and bundle, reusing the last encoding while it is clean. */
+  private Bundle contents() {
+    if (!dirty && encoded != null && encoded.containsKey(CONTENTS)) {
+      //noinspection ConstantConditions
+      return encoded.getBundle(CONTENTS);
+    }
+    return encodeContents();
+  }
+
+  private Bundle encodeContents() {
+    decode();
+    Bundle contents = new Bundle();
     int[] viewIds = new int[viewStateById.size()];
     int c = 0;
     for (Map.Entry<Integer, SparseArray<Parcelable>> entry : viewStateById.entrySet()) {
@@ -105,14 +241,83 @@ public class State {
       viewIds[c++] = viewId;
       SparseArray<Parcelable> viewState = entry.getValue();
       if (viewState.size() > 0) {
-        outState.putSparseParcelableArray(VIEW_STATE_PREFIX + viewId, viewState);
+        contents.putSparseParcelableArray(VIEW_STATE_PREFIX + viewId, viewState);
       }
     }
-    outState.putIntArray(VIEW_STATE_IDS, viewIds);
-    if (bundle != null && !bundle.isEmpty()) {
-      outState.putBundle(BUNDLE, bundle);
+    contents.putIntArray(VIEW_STATE_IDS, viewIds);
+    // Keep even an empty bundle: the encoding is reused, and must see later changes made to it.
+    if (bundle != null) {
+      contents.putBundle(BUNDLE, bundle);
     }
-    return outState;
+    return contents;
+  }
+
+  /**
+   * Releases view state and bundle from the heap by writing them to the given spillover. They are
+   * read back the next time they are needed, and until they change, the state is saved as a
+   * pointer to them.
+   */
+  void spill(StateSpillover spillover) {
+    if (spillToken != null) {
+      if (!decoded) return;
+    } else {
+      String token = spillover.write(contents());
+      if (token == null) return;
+      this.spillover = spillover;
+      spillToken = token;
+    }
+
+    viewStateById = new LinkedHashMap<>();
+    bundle = null;
+    encoded = null;
+    dirty = true;
+    contentsSize = -1;
+    decoded = false;
+  }
+
+  /** Discards saved view hierarchy state, keeping the bundle. */
+  void dropViewState() {
+    decode();
+    if (viewStateById.isEmpty()) return;
+    viewStateById = new LinkedHashMap<>();
+    markDirty();
+  }
+
+  /** Called when this state is no longer retained, to clean up anything it spilled. */
+  void discard() {
+    if (spillover != null) spillover.delete(spillToken);
+    spillToken = null;
+  }
+
+  private void decode() {
+    if (decoded) return;
+    decoded = true;
+
+    Bundle contents;
+    if (spillToken != null) {
+      // The copy is kept: the state is still saved as a pointer to it until it changes.
+      //noinspection ConstantConditions
+      contents = spillover.read(spillToken);
+      // Unreadable spilled state is lost, as if it was never saved.
+      if (contents == null) {
+        releaseSpill();
+        return;
+      }
+    } else {
+      Bundle savedState = checkNotNull(encoded, "Nothing to decode?");
+      // States encoded before view state moved to CONTENTS have it at the top level.
+      contents = savedState.containsKey(CONTENTS) ? savedState.getBundle(CONTENTS) : savedState;
+    }
+    //noinspection ConstantConditions
+    int[] viewIds = checkNotNull(contents.getIntArray(VIEW_STATE_IDS), "Null view state ids?");
+    for (int viewId : viewIds) {
+      SparseArray<Parcelable> viewState =
+          contents.getSparseParcelableArray(VIEW_STATE_PREFIX + viewId);
+      if (viewState != null) {
+        viewStateById.put(viewId, viewState);
+      }
+    }
+    bundle = contents.getBundle(BUNDLE);
   }
 
   @Override public boolean equals(Object o) {
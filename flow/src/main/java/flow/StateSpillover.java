@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Moves saved state off the Java heap into a {@link StateStore}, keyed by a random token. Only the
+ * token needs to be kept, e.g. in the Activity's instance state Bundle. Failures of the store are
+ * logged and reported as missing state, never thrown.
+ * <p>
+ * Each spillover is a session, whose records are listed in the store along with the session's
+ * id. A session that is saved with its Activity and never restored leaves its records behind, so
+ * when a session starts, the records of all but the most recent few sessions that no Flow in the
+ * process owns are deleted.
+ */
+final class StateSpillover {
+  private static final String TAG = "flow-spillover";
+  private static final String DIRECTORY = "flow-state";
+  private static final String LOG = "states.log";
+  private static final Map<File, StateStore> DEFAULT_STORES = new HashMap<>();
+  /** Sessions whose records are kept for an Activity that may yet be restored. */
+  private static final int MAX_DORMANT_SESSIONS = 8;
+  private static final Map<StateStore, Ledger> LEDGERS = new IdentityHashMap<>();
+
+  static File directory(Context context) {
+    File parent = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP //
+        ? context.getNoBackupFilesDir() : context.getFilesDir();
+    return new File(parent, DIRECTORY);
+  }
+
+  /**
+   * @return the store used when none is installed. It is shared by every Flow in the process, since
+   * a log file must only be written by one store.
+   */
+  static StateStore defaultStore(Context context) {
+    File file = new File(directory(context), LOG);
+    synchronized (DEFAULT_STORES) {
+      StateStore store = DEFAULT_STORES.get(file);
+      if (store == null) {
+        store = new FileStateStore(file);
+        DEFAULT_STORES.put(file, store);
+      }
+      return store;
+    }
+  }
+
+  /** @return the number of bytes the given bundle occupies when parceled. */
+  static int sizeOf(Bundle bundle) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(bundle);
+      return parcel.dataSize();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static Ledger ledgerOf(StateStore store) {
+    synchronized (LEDGERS) {
+      Ledger ledger = LEDGERS.get(store);
+      if (ledger == null) {
+        ledger = new Ledger(store);
+        LEDGERS.put(store, ledger);
+      }
+      return ledger;
+    }
+  }
+
+  private final StateStore store;
+  private final Ledger ledger;
+  private String session = UUID.randomUUID().toString();
+
+  StateSpillover(StateStore store) {
+    this.store = store;
+    this.ledger = ledgerOf(store);
+  }
+
+  /** @return the id to save with the Activity, and to {@link #start} with when it is restored. */
+  @NonNull String session() {
+    return session;
+  }
+
+  /**
+   * Starts this session, taking over the records of the given saved session if there is one, and
+   * deletes the records of sessions that are too old to be restored.
+   */
+  void start(@Nullable String savedSession) {
+    if (savedSession != null) session = savedSession;
+    ledger.start(session);
+  }
+
+  /** Ends this session, deleting whatever records of it remain. */
+  void finish() {
+    ledger.finish(session);
+  }
+
+  /**
+   * Starts a batch of writes and deletes, e.g. to spill many states at once. Until the batch
+   * ends, the list of each session's records is only updated in memory, and then written once.
+   */
+  void beginBatch() {
+    ledger.beginBatch();
+  }
+
+  /** Ends the batch begun by the matching call to {@link #beginBatch}. */
+  void endBatch() {
+    ledger.endBatch();
+  }
+
+  /**
+   * @return the token to pass to {@link #read} to retrieve the bundle, or null if it could not be
+   * written.
+   */
+  @Nullable String write(@NonNull Bundle bundle) {
+    byte[] bytes;
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(bundle);
+      bytes = parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+
+    String token = UUID.randomUUID().toString();
+    try {
+      store.put(token, bytes);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to write saved state", e);
+      return null;
+    }
+    ledger.add(session, token);
+    return token;
+  }
+
+  /** @return the bundle written under the given token, or null if it is gone or unreadable. */
+  @Nullable Bundle read(@NonNull String token) {
+    byte[] bytes;
+    try {
+      bytes = store.get(token);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read saved state", e);
+      return null;
+    }
+    if (bytes == null) return null;
+
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(bytes, 0, bytes.length);
+      parcel.setDataPosition(0);
+      return parcel.readBundle(StateSpillover.class.getClassLoader());
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Unable to unparcel saved state", e);
+      return null;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  void delete(@Nullable String token) {
+    if (token == null) return;
+    deleteRecord(store, token);
+    ledger.remove(token);
+  }
+
+  private static void deleteRecord(StateStore store, String id) {
+    try {
+      store.remove(id);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to delete saved state", e);
+    }
+  }
+
+  /**
+   * The records written by each session to a store, kept in the store itself so that another
+   * process can find them. Sessions are ordered from least to most recently written to.
+   */
+  private static final class Ledger {
+    private static final String ID = "flow-spillover-sessions";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final StateStore store;
+    private final Map<String, Set<String>> recordsBySession = new LinkedHashMap<>(16, 0.75f, true);
+    /** Sessions started in this process and not yet finished. */
+    private final Set<String> live = new HashSet<>();
+    private int batches;
+    /** True if changes made during a batch are yet to be written. */
+    private boolean unwritten;
+
+    Ledger(StateStore store) {
+      this.store = store;
+      byte[] bytes = null;
+      try {
+        bytes = store.get(ID);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to read spillover sessions", e);
+      }
+      if (bytes == null) return;
+      // One line per session: its id, then the tokens of its records.
+      for (String line : new String(bytes, UTF_8).split("\n")) {
+        String[] ids = line.split(" ");
+        if (ids[0].isEmpty()) continue;
+        Set<String> records = new LinkedHashSet<>();
+        for (int i = 1; i < ids.length; i++) {
+          records.add(ids[i]);
+        }
+        recordsBySession.put(ids[0], records);
+      }
+    }
+
+    synchronized void start(String session) {
+      live.add(session);
+      recordsOf(session);
+      int dormant = recordsBySession.size() - live.size();
+      Iterator<Map.Entry<String, Set<String>>> entries = recordsBySession.entrySet().iterator();
+      while (dormant > MAX_DORMANT_SESSIONS && entries.hasNext()) {
+        Map.Entry<String, Set<String>> entry = entries.next();
+        if (live.contains(entry.getKey())) continue;
+        for (String token : entry.getValue()) {
+          deleteRecord(store, token);
+        }
+        entries.remove();
+        dormant--;
+      }
+      persist();
+    }
+
+    synchronized void finish(String session) {
+      live.remove(session);
+      Set<String> records = recordsBySession.remove(session);
+      if (records == null) return;
+      for (String token : records) {
+        deleteRecord(store, token);
+      }
+      persist();
+    }
+
+    synchronized void add(String session, String token) {
+      recordsOf(session).add(token);
+      persist();
+    }
+
+    synchronized void remove(String token) {
+      for (Set<String> records : recordsBySession.values()) {
+        if (records.remove(token)) {
+          persist();
+          return;
+        }
+      }
+    }
+
+    synchronized void beginBatch() {
+      batches++;
+    }
+
+    synchronized void endBatch() {
+      if (--batches == 0 && unwritten) persist();
+    }
+
+    private Set<String> recordsOf(String session) {
+      // Also makes it the most recently used.
+      Set<String> records = recordsBySession.get(session);
+      if (records == null) {
+        records = new LinkedHashSet<>();
+        recordsBySession.put(session, records);
+      }
+      return records;
+    }
+
+    private void persist() {
+      if (batches > 0) {
+        unwritten = true;
+        return;
+      }
+      unwritten = false;
+      StringBuilder out = new StringBuilder();
+      for (Map.Entry<String, Set<String>> entry : recordsBySession.entrySet()) {
+        out.append(entry.getKey());
+        for (String token : entry.getValue()) {
+          out.append(' ').append(token);
+        }
+        out.append('\n');
+      }
+      try {
+        store.put(ID, out.toString().getBytes(UTF_8));
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to write spillover sessions", e);
+      }
+    }
+  }
+}
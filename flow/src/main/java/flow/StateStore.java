@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * Where Flow keeps encoded {@link State} that it moves out of the Java heap: states that don't fit
+ * in the {@link Installer#savedStateBudget saved state budget}, states spilled by a
+ * {@link TrimMemoryPolicy}, and {@link Installer#parkBackStackStates parked} back stack states.
+ * Install with {@link Installer#stateStore}.
+ * <p>
+ * Flow ships with {@link InMemoryStateStore}, {@link FileStateStore} and
+ * {@link MappedStateStore}. Implementations must be safe to call from any thread.
+ */
+public interface StateStore {
+  /** Stores the given data under the given id, replacing anything stored under it before. */
+  void put(@NonNull String id, @NonNull byte[] data) throws IOException;
+
+  /** @return the data stored under the given id, or null if there is none. */
+  @Nullable byte[] get(@NonNull String id) throws IOException;
+
+  /** Removes the data stored under the given id, if any. */
+  void remove(@NonNull String id) throws IOException;
+}
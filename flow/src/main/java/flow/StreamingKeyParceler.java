@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+
+/**
+ * A {@link KeyParceler} that can also write keys straight into a Parcel. Flow uses it to write
+ * all the keys of a history into a single parcel, so that keys appearing in more than one frame,
+ * like the shared parents of {@link TreeKey}s or the parts of {@link MultiKey}s, are written only
+ * once. The parceler generated for {@link FlowKey} classes implements this.
+ */
+public interface StreamingKeyParceler extends KeyParceler {
+  /**
+   * Writes the given key. If {@link KeyRefs#indexOf refs} has an equal key, including for keys
+   * nested inside this one, write a reference to it instead; otherwise write the key in full,
+   * then {@link KeyRefs#add add} it.
+   */
+  void writeKey(@NonNull Parcel out, @NonNull Object key, @NonNull KeyRefs refs);
+
+  /** Reads a key written by {@link #writeKey}, adding it to refs if it was written in full. */
+  @NonNull Object readKey(@NonNull Parcel in, @NonNull KeyRefs refs);
+}
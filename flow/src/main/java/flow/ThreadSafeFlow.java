@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Navigates a {@link Flow} from any thread, from {@link Flow#threadSafe()}. Calls made on the main
+ * thread take effect at once, as on the Flow itself. Calls made on other threads go into a
+ * lock-free queue, which the main thread drains into the Flow in order; producers never block
+ * each other or the main thread, and a single message is posted for however many calls are
+ * queued before it runs.
+ * <p>
+ * Calls made on one thread take effect in the order they were made. Those made on different
+ * threads at once are ordered as the queue receives them.
+ */
+public final class ThreadSafeFlow {
+  private abstract static class Command {
+    abstract void run(Flow flow);
+  }
+
+  private final Flow flow;
+  private final Queue<Command> commands = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean drainPosted = new AtomicBoolean();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable drain = new Runnable() {
+    @Override public void run() {
+      // Cleared before draining, so that a command the drain misses posts it again.
+      drainPosted.set(false);
+      drain();
+    }
+  };
+
+  ThreadSafeFlow(Flow flow) {
+    this.flow = flow;
+  }
+
+  /** @see Flow#set */
+  public void set(@NonNull final Object newTopKey) {
+    checkNotNull(newTopKey, "newTopKey");
+    submit(new Command() {
+      @Override void run(Flow flow) {
+        flow.set(newTopKey);
+      }
+    });
+  }
+
+  /** @see Flow#setHistory */
+  public void setHistory(@NonNull final History history, @NonNull final Direction direction) {
+    checkNotNull(history, "history");
+    checkNotNull(direction, "direction");
+    submit(new Command() {
+      @Override void run(Flow flow) {
+        flow.setHistory(history, direction);
+      }
+    });
+  }
+
+  /** @see Flow#replaceHistory */
+  public void replaceHistory(@NonNull final Object key, @NonNull final Direction direction) {
+    checkNotNull(key, "key");
+    checkNotNull(direction, "direction");
+    submit(new Command() {
+      @Override void run(Flow flow) {
+        flow.replaceHistory(key, direction);
+      }
+    });
+  }
+
+  /** @see Flow#replaceTop */
+  public void replaceTop(@NonNull final Object key, @NonNull final Direction direction) {
+    checkNotNull(key, "key");
+    checkNotNull(direction, "direction");
+    submit(new Command() {
+      @Override void run(Flow flow) {
+        flow.replaceTop(key, direction);
+      }
+    });
+  }
+
+  /** Goes back one key, if the history has more than one by the time this takes effect. */
+  public void goBack() {
+    submit(new Command() {
+      @Override void run(Flow flow) {
+        @SuppressWarnings("unused") boolean wentBack = flow.goBack();
+      }
+    });
+  }
+
+  private void submit(Command command) {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      // After the commands queued before it.
+      drain();
+      command.run(flow);
+      return;
+    }
+    commands.add(command);
+    if (!drainPosted.get() && drainPosted.compareAndSet(false, true)) {
+      mainHandler.post(drain);
+    }
+  }
+
+  private void drain() {
+    Command command;
+    while ((command = commands.poll()) != null) {
+      command.run(flow);
+    }
+  }
+}
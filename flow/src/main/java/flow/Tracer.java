@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+import android.support.annotation.NonNull;
+
+/**
+ * Marks the phases of Flow's work, such as starting up in an Activity, as nested sections. Install
+ * with {@link Installer#tracer}; use {@link #system()} to see them in systrace, or your own to
+ * time them.
+ */
+public abstract class Tracer {
+  /** {@link Installer#install()}. */
+  public static final String INSTALL = "Flow.install";
+  /** Creating the Activity's Flow, once the Activity is created. Includes the phases below. */
+  public static final String CREATE = "Flow.create";
+  /** Choosing the history to start with, reading it from saved state or an Intent if need be. */
+  public static final String SELECT_HISTORY = "Flow.selectHistory";
+  /** Setting up the services of a key about to be shown. */
+  public static final String SET_UP = "Flow.setUp";
+  /** {@link Dispatcher#dispatch}, until it returns. */
+  public static final String DISPATCH = "Flow.dispatch";
+
+  private static final Tracer NONE = new Tracer() {
+    @Override public void beginSection(@NonNull String name) {
+    }
+
+    @Override public void endSection() {
+    }
+  };
+
+  /** Flow's default: traces nothing. */
+  @NonNull public static Tracer none() {
+    return NONE;
+  }
+
+  /** Traces to {@link Trace}, on API 18 and up. */
+  @NonNull public static Tracer system() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return NONE;
+    return new Tracer() {
+      @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+      @Override public void beginSection(@NonNull String name) {
+        Trace.beginSection(name);
+      }
+
+      @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+      @Override public void endSection() {
+        Trace.endSection();
+      }
+    };
+  }
+
+  /** Begins a section with one of the names above, which ends at the next {@link #endSection}. */
+  public abstract void beginSection(@NonNull String name);
+
+  /** Ends the section most recently begun on this thread. */
+  public abstract void endSection();
+}
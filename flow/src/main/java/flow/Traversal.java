@@ -26,6 +26,8 @@ public final class Traversal {
   @NonNull public final History destination;
   @NonNull public final Direction direction;
   private final KeyManager keyManager;
+  /** Set by Flow as it dispatches. */
+  @Nullable FlowEngine.Pending pending;
 
   Traversal(@Nullable History from, @NonNull History to, @NonNull Direction direction,
       KeyManager keyManager) {
@@ -39,12 +41,24 @@ public final class Traversal {
    * Creates a Context for the given key.
    *
    * Contexts can be created only for keys at the top of the origin and destination Histories.
+   * While a key's services live, the same Context is returned for the same base Context, so that
+   * views inflated by it share one LayoutInflater.
    */
   @NonNull public Context createContext(@NonNull Object key, @NonNull Context baseContext) {
-    return new FlowContextWrapper(keyManager.findServices(key), baseContext);
+    return keyManager.findContext(key, baseContext);
   }
 
   @NonNull public State getState(@NonNull Object key) {
     return keyManager.getState(key);
   }
+
+  /**
+   * @return true if more navigation was requested since this traversal was dispatched, which
+   * Flow will dispatch once this one completes: at once, or when its {@link Scheduler} runs it.
+   * A Dispatcher that is still working may use this to skip showing a destination that will be
+   * replaced.
+   */
+  public boolean isSuperseded() {
+    return pending != null && pending.isSuperseded();
+  }
 }
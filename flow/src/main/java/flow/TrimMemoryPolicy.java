@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Decides what Flow releases when the app receives
+ * {@link android.content.ComponentCallbacks2#onTrimMemory}. Actions are configured per trim level;
+ * levels with no actions configured are ignored. Install with
+ * {@link Installer#trimMemoryPolicy}.
+ */
+public final class TrimMemoryPolicy {
+  public enum Action {
+    /** Discards the saved view hierarchy state of every key but the top of the history. */
+    DROP_BACKSTACK_VIEW_STATE,
+    /**
+     * Moves the saved view hierarchy state and bundle of every key but the top of the history to
+     * app-private storage, to be read back when next needed. Takes precedence over
+     * {@link #DROP_BACKSTACK_VIEW_STATE}.
+     */
+    SPILL_BACKSTACK_STATE,
+    /** Calls {@link ServicesFactory#onTrimMemory} for every live service scope. */
+    TRIM_SERVICES,
+    /** Discards state held for keys no longer in the history and shrinks internal maps. */
+    COMPACT
+  }
+
+  private static final TrimMemoryPolicy NONE = new Builder().build();
+
+  /** Flow's default: memory pressure is ignored. */
+  @NonNull public static TrimMemoryPolicy none() {
+    return NONE;
+  }
+
+  /**
+   * Compacts whenever asked to trim; trims services once memory runs critically low or the app is
+   * in the background; and spills back stack state to disk when the app is in the background.
+   */
+  @NonNull public static TrimMemoryPolicy standard() {
+    return new Builder() //
+        .on(TRIM_MEMORY_RUNNING_LOW, Action.COMPACT) //
+        .on(TRIM_MEMORY_RUNNING_CRITICAL, Action.TRIM_SERVICES, Action.COMPACT) //
+        .on(TRIM_MEMORY_UI_HIDDEN, Action.COMPACT) //
+        .on(TRIM_MEMORY_BACKGROUND, Action.SPILL_BACKSTACK_STATE, Action.TRIM_SERVICES,
+            Action.COMPACT) //
+        .on(TRIM_MEMORY_MODERATE, Action.SPILL_BACKSTACK_STATE, Action.TRIM_SERVICES,
+            Action.COMPACT) //
+        .on(TRIM_MEMORY_COMPLETE, Action.SPILL_BACKSTACK_STATE, Action.TRIM_SERVICES,
+            Action.COMPACT) //
+        .build();
+  }
+
+  @NonNull public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    private final SparseArray<Set<Action>> actions = new SparseArray<>();
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the actions to take for the given trim level, replacing any given before.
+     *
+     * @param level one of the {@code TRIM_MEMORY_} constants of
+     * {@link android.content.ComponentCallbacks2}
+     */
+    @NonNull public Builder on(int level, @NonNull Action... actions) {
+      Set<Action> set = EnumSet.noneOf(Action.class);
+      for (Action action : actions) {
+        set.add(checkNotNull(action, "action"));
+      }
+      this.actions.put(level, Collections.unmodifiableSet(set));
+      return this;
+    }
+
+    @NonNull public TrimMemoryPolicy build() {
+      return new TrimMemoryPolicy(actions.clone());
+    }
+  }
+
+  private final SparseArray<Set<Action>> actions;
+
+  private TrimMemoryPolicy(SparseArray<Set<Action>> actions) {
+    this.actions = actions;
+  }
+
+  @NonNull public Set<Action> actionsFor(int level) {
+    return actions.get(level, Collections.<Action>emptySet());
+  }
+
+  boolean requires(Action action) {
+    for (int i = 0; i < actions.size(); i++) {
+      if (actions.valueAt(i).contains(action)) return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.View;
+
+/**
+ * What Flow finds in a View's Context, found once and kept in a tag on the View. A View's Context
+ * never changes, so lookups from Views in bind loops and attach callbacks need not walk the chain
+ * of ContextWrappers each time.
+ */
+final class ViewLookup {
+  @NonNull static ViewLookup of(@NonNull View view) {
+    Object tag = view.getTag(R.id.flow_view_lookup);
+    if (tag != null) return (ViewLookup) tag;
+    ViewLookup lookup = new ViewLookup(view.getContext());
+    view.setTag(R.id.flow_view_lookup, lookup);
+    return lookup;
+  }
+
+  private final Context context;
+  private boolean wrapperFound;
+  @Nullable private FlowContextWrapper wrapper;
+  @Nullable private Flow flow;
+
+  private ViewLookup(Context context) {
+    this.context = context;
+  }
+
+  @Nullable FlowContextWrapper wrapper() {
+    if (!wrapperFound) {
+      wrapper = FlowContextWrapper.get(context);
+      wrapperFound = true;
+    }
+    return wrapper;
+  }
+
+  /** @return null if the Flow is not available yet, in which case it is looked up again. */
+  @Nullable Flow flow() {
+    if (flow == null) {
+      flow = InternalContextWrapper.getFlow(context);
+    }
+    return flow;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+
+import static flow.StateTest.PARCELER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Activities
+public class ActivityLifecycleIntegrationTest {
+  public static class TestActivity extends Activity {
+    @Override protected void attachBaseContext(Context baseContext) {
+      baseContext = Flow.configure(baseContext, this) //
+          .retainWithFragment(false) //
+          .keyParceler(PARCELER) //
+          .defaultKey(new TestKey("Able")) //
+          .dispatcher(new Dispatcher() {
+            @Override public void dispatch(@NonNull Traversal traversal,
+                @NonNull TraversalCallback callback) {
+              callback.onTraversalCompleted();
+            }
+          }) //
+          .install();
+      super.attachBaseContext(baseContext);
+    }
+  }
+
+  public static class SpillingActivity extends Activity {
+    static final StateTest.CountingStore STORE = new StateTest.CountingStore();
+
+    @Override protected void attachBaseContext(Context baseContext) {
+      baseContext = Flow.configure(baseContext, this) //
+          .retainWithFragment(false) //
+          .keyParceler(PARCELER) //
+          .defaultKey(new TestKey("Able")) //
+          .savedStateBudget(1) //
+          .stateStore(STORE) //
+          .dispatcher(new Dispatcher() {
+            @Override public void dispatch(@NonNull Traversal traversal,
+                @NonNull TraversalCallback callback) {
+              callback.onTraversalCompleted();
+            }
+          }) //
+          .install();
+      super.attachBaseContext(baseContext);
+    }
+  }
+
+  @Test public void installsWithoutFragment() {
+    TestActivity activity = Robolectric.buildActivity(TestActivity.class).setup().get();
+
+    assertThat(InternalLifecycleIntegration.find(activity)).isNull();
+    assertThat(Flow.get(activity).getHistory().top()).isEqualTo(new TestKey("Able"));
+  }
+
+  @Test public void flowSurvivesConfigurationChange() {
+    ActivityController<TestActivity> controller =
+        Robolectric.buildActivity(TestActivity.class).setup();
+    Flow flow = Flow.get(controller.get());
+    flow.set(new TestKey("Baker"));
+
+    controller.configurationChange(new Configuration());
+
+    assertThat(Flow.get(controller.get())).isSameAs(flow);
+  }
+
+  @Test public void historyIsRestoredFromSavedState() {
+    ActivityController<TestActivity> controller =
+        Robolectric.buildActivity(TestActivity.class).setup();
+    Flow.get(controller.get()).set(new TestKey("Baker"));
+    Bundle saved = new Bundle();
+    controller.saveInstanceState(saved).pause().stop().destroy();
+
+    TestActivity restored = Robolectric.buildActivity(TestActivity.class).setup(saved).get();
+
+    assertThat(Flow.get(restored).getHistory().asList()) //
+        .containsExactly(new TestKey("Able"), new TestKey("Baker"));
+  }
+
+  @Test public void statesOverSavedStateBudgetAreReadBackWhenFirstNeeded() {
+    ActivityController<SpillingActivity> controller =
+        Robolectric.buildActivity(SpillingActivity.class).setup();
+    Bundle able = new Bundle();
+    able.putString("name", "Able");
+    LifecycleDelegate.find(controller.get()).keyManager.getState(new TestKey("Able"))
+        .setBundle(able);
+    Flow.get(controller.get()).set(new TestKey("Baker"));
+    Bundle saved = new Bundle();
+    controller.saveInstanceState(saved).pause().stop().destroy();
+    int reads = SpillingActivity.STORE.reads;
+
+    SpillingActivity restored =
+        Robolectric.buildActivity(SpillingActivity.class).setup(saved).get();
+
+    assertThat(Flow.get(restored).getHistory().asList()) //
+        .containsExactly(new TestKey("Able"), new TestKey("Baker"));
+    assertThat(SpillingActivity.STORE.reads).isEqualTo(reads);
+    State state = LifecycleDelegate.find(restored).keyManager.getState(new TestKey("Able"));
+    assertThat(state.getBundle().getString("name")).isEqualTo("Able");
+    assertThat(SpillingActivity.STORE.reads).isEqualTo(reads + 1);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+import android.widget.TwoLineListItem;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Views
+public class AsyncKeyDispatcherTest {
+  /** Runs inflations only when asked to. */
+  static class QueueExecutor implements Executor {
+    final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    @Override public void execute(@NonNull Runnable task) {
+      tasks.add(task);
+    }
+
+    void runNext() {
+      tasks.remove().run();
+    }
+  }
+
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final TestKey charlie = new TestKey("Charlie");
+  private final FrameLayout container = new FrameLayout(RuntimeEnvironment.application);
+  private final QueueExecutor executor = new QueueExecutor();
+  private final List<Object> layoutsAsked = new ArrayList<>();
+  private Flow flow;
+
+  @Before public void setUp() {
+    KeyLayouts layouts = new KeyLayouts() {
+      @Override public int layoutFor(@NonNull Object key) {
+        layoutsAsked.add(key);
+        return key.equals(baker) ? android.R.layout.simple_list_item_2
+            : android.R.layout.simple_list_item_1;
+      }
+    };
+    flow = new Flow(new KeyManager(Collections.<ServicesFactory>emptyList()),
+        History.single(able));
+    flow.setDispatcher(
+        AsyncKeyDispatcher.configure(container, layouts).executor(executor).build());
+    executor.runNext();
+  }
+
+  @Test public void inflatesInBackgroundThenShows() {
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(able);
+
+    flow.set(baker);
+    assertThat(flow.getHistory().top()).isEqualTo(able);
+    assertThat(executor.tasks).hasSize(1);
+
+    executor.runNext();
+    assertThat(flow.getHistory().top()).isEqualTo(baker);
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(container.getChildAt(0)).isInstanceOf(TwoLineListItem.class);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(baker);
+  }
+
+  @Test public void dropsSupersededInflation() {
+    flow.set(baker);
+    flow.set(charlie);
+    executor.runNext();
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(able);
+
+    executor.runNext();
+    assertThat(flow.getHistory().top()).isEqualTo(charlie);
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(container.getChildAt(0)).isInstanceOf(TextView.class);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(charlie);
+    assertThat(layoutsAsked).containsExactly(able, baker, charlie);
+  }
+
+  @Test public void dropsSupersededInflationWhenNextTraversalIsScheduled() {
+    FlowTest.ManualScheduler scheduler = new FlowTest.ManualScheduler();
+    flow.setScheduler(scheduler);
+    flow.set(baker);
+    scheduler.run();
+    flow.set(charlie);
+    executor.runNext();
+    // Completing baker only scheduled charlie; baker is still never shown.
+    assertThat(flow.getHistory().top()).isEqualTo(baker);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(able);
+
+    scheduler.run();
+    executor.runNext();
+    assertThat(flow.getHistory().top()).isEqualTo(charlie);
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(charlie);
+  }
+
+  @Test public void reusesSupersededInflationForSameKey() {
+    flow.set(baker);
+    flow.set(baker);
+    executor.runNext();
+
+    assertThat(executor.tasks).isEmpty();
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(baker);
+    assertThat(layoutsAsked).containsExactly(able, baker);
+  }
+
+  @Test public void returningToShownKeyDoesNotInflate() {
+    flow.set(baker);
+    flow.goBack();
+    executor.runNext();
+
+    assertThat(executor.tasks).isEmpty();
+    assertThat(flow.getHistory().top()).isEqualTo(able);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(able);
+    assertThat(layoutsAsked).containsExactly(able, baker);
+  }
+}
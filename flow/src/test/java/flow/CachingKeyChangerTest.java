@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Views
+public class CachingKeyChangerTest {
+  static class CountingFactory implements CachingKeyChanger.ViewFactory {
+    final List<Object> created = new ArrayList<>();
+
+    @NonNull @Override public View createView(@NonNull Object key, @NonNull Context context,
+        @NonNull ViewGroup container) {
+      created.add(key);
+      return new View(context);
+    }
+  }
+
+  static final TraversalCallback NOOP = new TraversalCallback() {
+    @Override public void onTraversalCompleted() {
+    }
+  };
+
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final TestKey charlie = new TestKey("Charlie");
+  private final FrameLayout container = new FrameLayout(RuntimeEnvironment.application);
+  private final CountingFactory factory = new CountingFactory();
+  private Object shown;
+
+  @Test public void backReattachesCachedView() {
+    CachingKeyChanger changer = CachingKeyChanger.builder(container, factory).build();
+    go(changer, able, Direction.REPLACE);
+    View ableView = container.getChildAt(0);
+    go(changer, baker, Direction.FORWARD);
+    go(changer, able, Direction.BACKWARD);
+
+    assertThat(factory.created).containsExactly(able, baker);
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(container.getChildAt(0)).isSameAs(ableView);
+    assertThat(changer.cachedCount()).isZero();
+  }
+
+  @Test public void viewOfDifferentServicesIsNotReused() {
+    CachingKeyChanger changer = CachingKeyChanger.builder(container, factory).build();
+    go(changer, able, Direction.REPLACE);
+    go(changer, baker, Direction.FORWARD);
+    changer.changeKey(State.empty(baker), State.empty(able), Direction.BACKWARD,
+        contextOf(able, Services.ROOT_SERVICES.extend(able).bind("new", new Object()).build()),
+        NOOP);
+
+    assertThat(factory.created).containsExactly(able, baker, able);
+  }
+
+  @Test public void evictsEldestBeyondMaxViews() {
+    CachingKeyChanger changer = CachingKeyChanger.builder(container, factory).maxViews(1).build();
+    go(changer, able, Direction.REPLACE);
+    go(changer, baker, Direction.FORWARD);
+    go(changer, charlie, Direction.FORWARD);
+    go(changer, baker, Direction.BACKWARD);
+    go(changer, able, Direction.BACKWARD);
+
+    assertThat(factory.created).containsExactly(able, baker, charlie, able);
+  }
+
+  @Test public void replaceAndTrimMemoryEvict() {
+    CachingKeyChanger changer = CachingKeyChanger.builder(container, factory).build();
+    go(changer, able, Direction.REPLACE);
+    go(changer, baker, Direction.FORWARD);
+    go(changer, charlie, Direction.FORWARD);
+    assertThat(changer.cachedCount()).isEqualTo(2);
+
+    changer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+    assertThat(changer.cachedCount()).isEqualTo(1);
+    changer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+    assertThat(changer.cachedCount()).isZero();
+
+    go(changer, able, Direction.FORWARD);
+    assertThat(changer.cachedCount()).isEqualTo(1);
+    go(changer, baker, Direction.REPLACE);
+    assertThat(changer.cachedCount()).isZero();
+  }
+
+  @Test public void bootstrapToShownKeyKeepsViewAndCache() {
+    CachingKeyChanger changer = CachingKeyChanger.builder(container, factory).build();
+    go(changer, able, Direction.REPLACE);
+    go(changer, baker, Direction.FORWARD);
+    View bakerView = container.getChildAt(0);
+
+    // As on resume: no origin, so no outgoing state.
+    changer.changeKey(null, State.empty(baker), Direction.REPLACE,
+        contextOf(baker, Services.ROOT_SERVICES.extend(baker).build()), NOOP);
+
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(container.getChildAt(0)).isSameAs(bakerView);
+    assertThat(changer.cachedCount()).isEqualTo(1);
+    go(changer, able, Direction.BACKWARD);
+    assertThat(factory.created).containsExactly(able, baker);
+  }
+
+  private void go(CachingKeyChanger changer, Object key, Direction direction) {
+    State outgoing = shown == null ? null : State.empty(shown);
+    changer.changeKey(outgoing, State.empty(key), direction,
+        contextOf(key, Services.ROOT_SERVICES.extend(key).build()), NOOP);
+    shown = key;
+  }
+
+  private static Map<Object, Context> contextOf(Object key, Services services) {
+    return Collections.<Object, Context>singletonMap(key,
+        new FlowContextWrapper(services, RuntimeEnvironment.application));
+  }
+}
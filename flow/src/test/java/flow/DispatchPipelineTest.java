@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class DispatchPipelineTest {
+  /** Records the stages that ran, and passes on. */
+  class Stage implements DispatchPipeline.Interceptor {
+    final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    @Override public void intercept(@NonNull DispatchPipeline.Chain chain) {
+      ran.add(name);
+      chain.proceed();
+    }
+  }
+
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final List<String> ran = new ArrayList<>();
+  private final Flow flow = new Flow(new KeyManager(Collections.<ServicesFactory>emptyList()),
+      History.single(able));
+
+  @Test public void stagesRunInOrderThenComplete() {
+    flow.setDispatcher(DispatchPipeline.builder() //
+        .add("first", new Stage("first")) //
+        .add("second", new Stage("second")) //
+        .build());
+    ran.clear();
+    flow.set(baker);
+
+    assertThat(ran).containsExactly("first", "second");
+    assertThat(flow.getHistory().top()).isEqualTo(baker);
+  }
+
+  @Test public void completeSkipsLaterStages() {
+    flow.setDispatcher(DispatchPipeline.builder() //
+        .add("skip", DispatchPipeline.skipSameTopKey()) //
+        .add("render", new Stage("render")) //
+        .build());
+    assertThat(ran).containsExactly("render");
+
+    flow.set(able);
+    assertThat(ran).containsExactly("render");
+    flow.set(baker);
+    assertThat(ran).containsExactly("render", "render");
+  }
+
+  @Test public void stagesMayProceedLater() {
+    final List<DispatchPipeline.Chain> held = new ArrayList<>();
+    flow.setDispatcher(DispatchPipeline.builder() //
+        .add("hold", new DispatchPipeline.Interceptor() {
+          @Override public void intercept(@NonNull DispatchPipeline.Chain chain) {
+            held.add(chain);
+          }
+        }) //
+        .build());
+    held.remove(0).proceed();
+    flow.set(baker);
+    assertThat(flow.getHistory().top()).isEqualTo(able);
+
+    DispatchPipeline.Chain chain = held.remove(0);
+    chain.proceed();
+    assertThat(flow.getHistory().top()).isEqualTo(baker);
+    try {
+      chain.proceed();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test public void timesEachStageWithoutTheStagesAfterIt() {
+    final Map<String, Long> nanos = new LinkedHashMap<>();
+    flow.setDispatcher(DispatchPipeline.builder() //
+        .add("quick", new Stage("quick")) //
+        .add("slow", new DispatchPipeline.Interceptor() {
+          @Override public void intercept(@NonNull DispatchPipeline.Chain chain) {
+            try {
+              Thread.sleep(20);
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            chain.proceed();
+          }
+        }) //
+        .listener(new DispatchPipeline.StageListener() {
+          @Override public void onStage(@NonNull String name, @NonNull Traversal traversal,
+              long selfNanos, long wallNanos) {
+            nanos.put(name, selfNanos);
+            assertThat(wallNanos).isLessThanOrEqualTo(selfNanos);
+          }
+        }) //
+        .build());
+
+    assertThat(nanos.keySet()).containsExactly("slow", "quick");
+    assertThat(nanos.get("slow")).isGreaterThanOrEqualTo(20000000L);
+    assertThat(nanos.get("quick")).isLessThan(20000000L);
+  }
+
+  @Test public void timesStageThatProceedsLaterUntilItProceeds() throws InterruptedException {
+    final List<DispatchPipeline.Chain> held = new ArrayList<>();
+    final Map<String, long[]> nanos = new LinkedHashMap<>();
+    flow.setDispatcher(DispatchPipeline.builder() //
+        .add("animate", new DispatchPipeline.Interceptor() {
+          @Override public void intercept(@NonNull DispatchPipeline.Chain chain) {
+            held.add(chain);
+          }
+        }) //
+        .add("render", new Stage("render")) //
+        .listener(new DispatchPipeline.StageListener() {
+          @Override public void onStage(@NonNull String name, @NonNull Traversal traversal,
+              long selfNanos, long wallNanos) {
+            nanos.put(name, new long[] {selfNanos, wallNanos});
+          }
+        }) //
+        .build());
+    assertThat(nanos).isEmpty();
+
+    Thread.sleep(20);
+    held.remove(0).proceed();
+    // Reported as it proceeds, before the stages after it.
+    assertThat(nanos.keySet()).containsExactly("animate", "render");
+    assertThat(nanos.get("animate")[0]).isLessThan(20000000L);
+    assertThat(nanos.get("animate")[1]).isGreaterThanOrEqualTo(20000000L);
+  }
+}
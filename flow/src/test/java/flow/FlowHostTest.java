@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlowHostTest {
+  /** Records the keys of the scopes it sets up and tears down. */
+  static class RecordingFactory extends ServicesFactory {
+    final List<Object> setUp = new ArrayList<>();
+    final List<Object> tornDown = new ArrayList<>();
+
+    @Override public void bindServices(@NonNull Services.Binder services) {
+      setUp.add(services.getKey());
+    }
+
+    @Override public void tearDownServices(@NonNull Services services) {
+      tornDown.add(services.getKey());
+    }
+  }
+
+  private final RecordingFactory factory = new RecordingFactory();
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final TestKey charlie = new TestKey("Charlie");
+
+  @Test public void activitiesShareScopesOfEqualKeys() {
+    FlowHost host = FlowHost.builder().addServicesFactory(factory).build();
+    KeyManager first = new KeyManager(host.scopes);
+    KeyManager second = new KeyManager(host.scopes);
+
+    first.setUp(able);
+    second.setUp(new TestKey("Able"));
+
+    assertThat(second.findServices(able)).isSameAs(first.findServices(able));
+    assertThat(factory.setUp).containsExactly(able);
+  }
+
+  @Test public void scopeIsTornDownWhenLastActivityIsDone() {
+    FlowHost host = FlowHost.builder().addServicesFactory(factory).build();
+    KeyManager first = new KeyManager(host.scopes);
+    KeyManager second = new KeyManager(host.scopes);
+    first.setUp(able);
+    second.setUp(able);
+
+    first.tearDown(able);
+    assertThat(factory.tornDown).isEmpty();
+    second.tearDown(able);
+    assertThat(factory.tornDown).containsExactly(able);
+  }
+
+  @Test public void retainedScopesAreReused() {
+    FlowHost host = FlowHost.builder() //
+        .addServicesFactory(factory) //
+        .retainUnusedScopes(1) //
+        .build();
+    KeyManager keyManager = new KeyManager(host.scopes);
+    keyManager.setUp(able);
+    Services services = keyManager.findServices(able);
+    keyManager.tearDown(able);
+
+    keyManager.setUp(able);
+    assertThat(keyManager.findServices(able)).isSameAs(services);
+    assertThat(factory.setUp).containsExactly(able);
+    assertThat(factory.tornDown).isEmpty();
+  }
+
+  @Test public void leastRecentlyReleasedScopesAreEvicted() {
+    FlowHost host = FlowHost.builder() //
+        .addServicesFactory(factory) //
+        .retainUnusedScopes(2) //
+        .build();
+    KeyManager keyManager = new KeyManager(host.scopes);
+    for (TestKey key : new TestKey[] {able, baker, charlie}) {
+      keyManager.setUp(key);
+      keyManager.tearDown(key);
+    }
+    assertThat(factory.tornDown).containsExactly(able);
+
+    host.releaseUnusedScopes();
+    assertThat(factory.tornDown).containsExactly(able, baker, charlie);
+  }
+
+  @Test public void trimmingServicesReleasesRetainedScopes() {
+    FlowHost host = FlowHost.builder() //
+        .addServicesFactory(factory) //
+        .retainUnusedScopes(2) //
+        .build();
+    KeyManager keyManager = new KeyManager(host.scopes);
+    keyManager.setUp(able);
+    keyManager.setUp(baker);
+    keyManager.tearDown(baker);
+
+    keyManager.trimServices(0);
+    assertThat(factory.tornDown).containsExactly(baker);
+    assertThat(keyManager.findServices(able).<TestKey>getKey()).isEqualTo(able);
+  }
+}
@@ -17,9 +17,11 @@ package flow;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -94,6 +96,22 @@ public class FlowTest {
     }
   }
 
+  /** Runs scheduled work only when told to. */
+  static class ManualScheduler extends Scheduler {
+    Runnable posted;
+
+    @Override public void schedule(@NonNull Runnable work) {
+      assertThat(posted).isNull();
+      posted = work;
+    }
+
+    void run() {
+      Runnable work = posted;
+      posted = null;
+      work.run();
+    }
+  }
+
   @Before public void setUp() {
     initMocks(this);
   }
@@ -474,4 +492,141 @@ public class FlowTest {
         History.emptyBuilder().pushAll(asList(noPersist, charlie)).build().asList();
     assertThat(flow.getFilteredHistory().asList()).isEqualTo(expected);
   }
+
+  @Test public void resumeWithUnchangedHistorySkipsBootstrap() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setRedispatchOnResume(false);
+    FlowDispatcher dispatcher = new FlowDispatcher();
+    flow.setDispatcher(dispatcher, false);
+    assertThat(lastStack.top()).isEqualTo(able);
+    lastStack = null;
+
+    flow.removeDispatcher(dispatcher);
+    flow.setDispatcher(dispatcher, true);
+    assertThat(lastStack).isNull();
+  }
+
+  @Test public void resumeAfterHistoryChangedWhilePausedDispatches() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setRedispatchOnResume(false);
+    FlowDispatcher dispatcher = new FlowDispatcher();
+    flow.setDispatcher(dispatcher, false);
+
+    flow.removeDispatcher(dispatcher);
+    flow.set(baker);
+    flow.setDispatcher(dispatcher, true);
+    assertThat(lastStack.top()).isEqualTo(baker);
+    assertThat(lastDirection).isSameAs(Direction.FORWARD);
+  }
+
+  @Test public void newDispatcherIsAlwaysBootstrapped() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setRedispatchOnResume(false);
+    FlowDispatcher first = new FlowDispatcher();
+    flow.setDispatcher(first, false);
+    lastStack = null;
+
+    flow.removeDispatcher(first);
+    flow.setDispatcher(new FlowDispatcher(), true);
+    assertThat(lastStack.top()).isEqualTo(able);
+    assertThat(lastDirection).isSameAs(Direction.REPLACE);
+  }
+
+  @Test public void resumeRedispatchesByDefault() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    FlowDispatcher dispatcher = new FlowDispatcher();
+    flow.setDispatcher(dispatcher, false);
+    lastStack = null;
+
+    flow.removeDispatcher(dispatcher);
+    flow.setDispatcher(dispatcher, true);
+    assertThat(lastStack.top()).isEqualTo(able);
+  }
+
+  @Test public void scheduledNavigationWaitsForScheduler() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    ManualScheduler scheduler = new ManualScheduler();
+    flow.setScheduler(scheduler);
+    flow.setDispatcher(new FlowDispatcher());
+    assertThat(lastStack.top()).isEqualTo(able);
+    assertThat(scheduler.posted).isNull();
+
+    flow.set(baker);
+    assertThat(lastStack.top()).isEqualTo(able);
+    scheduler.run();
+    assertThat(lastStack.top()).isEqualTo(baker);
+    assertThat(lastDirection).isSameAs(Direction.FORWARD);
+  }
+
+  @Test public void navigationBeforeScheduledWorkIsCoalesced() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    ManualScheduler scheduler = new ManualScheduler();
+    flow.setScheduler(scheduler);
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.set(charlie);
+    assertThat(flow.goBack()).isTrue();
+    dispatcher.assertIdle();
+    scheduler.run();
+    dispatcher.assertDispatching(baker);
+    assertThat(dispatcher.traversal.origin.top()).isEqualTo(able);
+    // [able] to [able, baker] is a push, though the last navigation went back.
+    assertThat(dispatcher.traversal.direction).isSameAs(Direction.FORWARD);
+
+    // Navigation requested while dispatching is scheduled once that completes.
+    flow.set(charlie);
+    flow.set(delta);
+    dispatcher.fire();
+    dispatcher.assertIdle();
+    scheduler.run();
+    dispatcher.assertDispatching(delta);
+    assertThat(dispatcher.traversal.direction).isSameAs(Direction.FORWARD);
+    dispatcher.fire();
+    assertThat(flow.getHistory().asList()).containsExactly(able, baker, charlie, delta);
+  }
+
+  @Test public void coalescedNavigationIsDispatchedInItsNetDirection() {
+    History history =
+        History.emptyBuilder().pushAll(Arrays.<Object>asList(able, baker, charlie)).build();
+    Flow flow = new Flow(keyManager, history);
+    ManualScheduler scheduler = new ManualScheduler();
+    flow.setScheduler(scheduler);
+    flow.setDispatcher(new FlowDispatcher());
+
+    // Back to a prefix, though the first navigation went forward.
+    flow.set(delta);
+    assertThat(flow.goBack()).isTrue();
+    assertThat(flow.goBack()).isTrue();
+    scheduler.run();
+    assertThat(lastStack.asList()).containsExactly(able, baker);
+    assertThat(lastDirection).isSameAs(Direction.BACKWARD);
+
+    // Neither extends the other.
+    flow.replaceTop(charlie, Direction.FORWARD);
+    flow.set(delta);
+    scheduler.run();
+    assertThat(lastStack.asList()).containsExactly(able, charlie, delta);
+    assertThat(lastDirection).isSameAs(Direction.REPLACE);
+  }
+
+  @Test public void executorSchedulerExecutesOnExecutor() {
+    final List<Runnable> tasks = new ArrayList<>();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setScheduler(Scheduler.executor(new Executor() {
+      @Override public void execute(@NonNull Runnable task) {
+        tasks.add(task);
+      }
+    }));
+    flow.setDispatcher(new FlowDispatcher());
+
+    flow.set(baker);
+    assertThat(lastStack.top()).isEqualTo(able);
+    assertThat(tasks).hasSize(1);
+    tasks.remove(0).run();
+    assertThat(lastStack.top()).isEqualTo(baker);
+    assertThat(tasks).isEmpty();
+  }
 }
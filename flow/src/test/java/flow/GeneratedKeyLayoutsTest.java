@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/** Looks layouts up in the table that flow-compiler generates for these tests. */
+public class GeneratedKeyLayoutsTest {
+  private static final int ABLE_LAYOUT = 0x7f030001;
+  private static final int MODE_LAYOUT = 0x7f030002;
+
+  @Layout(ABLE_LAYOUT) static final class Able {
+  }
+
+  /** Has no layout. */
+  static final class Baker {
+  }
+
+  @Layout(MODE_LAYOUT) enum Mode {
+    VIEW,
+    EDIT {
+      @Override public String toString() {
+        return "edit";
+      }
+    }
+  }
+
+  // Named for the package that the keys share, which is this one.
+  private final KeyLayouts layouts = new GeneratedKeyLayouts();
+
+  @Test public void looksUpLayoutOfKeyClass() {
+    assertThat(layouts.layoutFor(new Able())).isEqualTo(ABLE_LAYOUT);
+  }
+
+  @Test public void looksUpLayoutOfEnumConstantsWithBodies() {
+    assertThat(Mode.EDIT.getClass()).isNotEqualTo(Mode.class);
+    assertThat(layouts.layoutFor(Mode.VIEW)).isEqualTo(MODE_LAYOUT);
+    assertThat(layouts.layoutFor(Mode.EDIT)).isEqualTo(MODE_LAYOUT);
+  }
+
+  @Test public void keyWithoutLayoutThrows() {
+    try {
+      layouts.layoutFor(new Baker());
+      fail("Should throw");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining(Baker.class.getName());
+    }
+  }
+}
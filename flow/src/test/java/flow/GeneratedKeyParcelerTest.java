@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Round-trips keys through the parceler that flow-compiler generates for these tests. */
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Parcel
+public class GeneratedKeyParcelerTest {
+  @FlowKey enum Mode {
+    VIEW,
+    EDIT {
+      @Override boolean editable() {
+        return true;
+      }
+    };
+
+    boolean editable() {
+      return false;
+    }
+  }
+
+  @FlowKey @NotPersistent enum Overlay {
+    CONFIRM {
+      @Override public String toString() {
+        return "confirm";
+      }
+    }
+  }
+
+  @FlowKey static final class Screen {
+    final String name;
+    final Mode mode;
+
+    Screen(String name, Mode mode) {
+      this.name = name;
+      this.mode = mode;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Screen)) return false;
+      Screen other = (Screen) o;
+      return name.equals(other.name) && mode == other.mode;
+    }
+
+    @Override public int hashCode() {
+      return 31 * name.hashCode() + mode.hashCode();
+    }
+  }
+
+  private final KeyParceler parceler = new GeneratedKeyParceler();
+
+  @Test public void roundTripsKeys() {
+    assertThat(roundTrip(Mode.VIEW)).isSameAs(Mode.VIEW);
+    assertThat(roundTrip(new Screen("Able", Mode.VIEW))).isEqualTo(new Screen("Able", Mode.VIEW));
+  }
+
+  @Test public void roundTripsEnumConstantsWithBodies() {
+    assertThat(Mode.EDIT.getClass()).isNotEqualTo(Mode.class);
+    assertThat(roundTrip(Mode.EDIT)).isSameAs(Mode.EDIT);
+    assertThat(roundTrip(new Screen("Able", Mode.EDIT))).isEqualTo(new Screen("Able", Mode.EDIT));
+    assertThat(roundTrip(Overlay.CONFIRM)).isSameAs(Overlay.CONFIRM);
+  }
+
+  @Test public void registersPersistenceOfEnumConstantsWithBodies() {
+    assertThat(KeyMetadata.isPersistent(Mode.EDIT)).isTrue();
+    assertThat(KeyMetadata.isPersistent(Overlay.CONFIRM)).isFalse();
+  }
+
+  private Object roundTrip(Object key) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeParcelable(parceler.toParcelable(key), 0);
+      parcel.setDataPosition(0);
+      Parcelable parcelable = parcel.readParcelable(getClass().getClassLoader());
+      return parceler.toKey(parcelable);
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
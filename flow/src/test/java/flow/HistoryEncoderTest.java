@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static flow.StateTest.PARCELER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Bundle and Parcel
+public class HistoryEncoderTest {
+  static class ChildKey extends TestKey implements TreeKey {
+    final TestKey parent;
+
+    ChildKey(String name, TestKey parent) {
+      super(name);
+      this.parent = parent;
+    }
+
+    @NonNull @Override public Object getParentKey() {
+      return parent;
+    }
+  }
+
+  /** Writes names, and counts the keys it writes in full. */
+  static class TreeParceler implements StreamingKeyParceler {
+    final List<String> written = new ArrayList<>();
+
+    @NonNull @Override public Parcelable toParcelable(@NonNull Object key) {
+      throw new UnsupportedOperationException();
+    }
+
+    @NonNull @Override public Object toKey(@NonNull Parcelable parcelable) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void writeKey(@NonNull Parcel out, @NonNull Object key,
+        @NonNull KeyRefs refs) {
+      int ref = refs.indexOf(key);
+      out.writeInt(ref);
+      if (ref >= 0) return;
+
+      TestKey testKey = (TestKey) key;
+      written.add(testKey.name);
+      out.writeString(testKey.name);
+      boolean child = key instanceof ChildKey;
+      out.writeInt(child ? 1 : 0);
+      if (child) writeKey(out, ((ChildKey) key).parent, refs);
+      refs.add(key);
+    }
+
+    @NonNull @Override public Object readKey(@NonNull Parcel in, @NonNull KeyRefs refs) {
+      int ref = in.readInt();
+      if (ref >= 0) return refs.get(ref);
+
+      String name = in.readString();
+      Object key = in.readInt() == 1 //
+          ? new ChildKey(name, (TestKey) readKey(in, refs)) : new TestKey(name);
+      refs.add(key);
+      return key;
+    }
+  }
+
+  @Test public void writesSharedParentsOnce() {
+    TestKey parent = new TestKey("Contacts");
+    ChildKey able = new ChildKey("Able", parent);
+    ChildKey baker = new ChildKey("Baker", parent);
+    TreeParceler parceler = new TreeParceler();
+
+    Bundle bundle = new Bundle();
+    HistoryEncoder.encode(bundle, states(parent, able, baker), parceler);
+    assertThat(parceler.written).containsExactly("Contacts", "Able", "Baker");
+
+    History.Builder builder = History.emptyBuilder();
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    HistoryEncoder.decode(bundle, parceler, builder, keyManager, null);
+    List<Object> keys = builder.build().asList();
+    assertThat(keys).containsExactly(parent, able, baker);
+    assertThat(((ChildKey) keys.get(1)).parent).isSameAs(keys.get(0));
+    assertThat(((ChildKey) keys.get(2)).parent).isSameAs(keys.get(0));
+  }
+
+  @Test public void keepsStateWithKeysEncodedSeparately() {
+    State state = new State(new TestKey("Able"));
+    Bundle saved = new Bundle();
+    saved.putInt("count", 3);
+    state.setBundle(saved);
+
+    Bundle bundle = new Bundle();
+    TreeParceler parceler = new TreeParceler();
+    HistoryEncoder.encode(bundle, Collections.singletonList(state), parceler);
+
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    HistoryEncoder.decode(bundle, parceler, History.emptyBuilder(), keyManager, null);
+    State restored = keyManager.getState(new TestKey("Able"));
+    assertThat(restored.getBundle().getInt("count")).isEqualTo(3);
+  }
+
+  @Test public void plainParcelerWritesEachKey() {
+    Bundle bundle = new Bundle();
+    HistoryEncoder.encodeKeys(bundle,
+        History.emptyBuilder().push(new TestKey("Able")).push(new TestKey("Baker")).build(),
+        PARCELER);
+
+    History.Builder builder = History.emptyBuilder();
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    HistoryEncoder.decode(bundle, PARCELER, builder, keyManager, null);
+    assertThat(builder.build().asList()).containsExactly(new TestKey("Able"),
+        new TestKey("Baker"));
+  }
+
+  private static List<State> states(Object... keys) {
+    List<State> states = new ArrayList<>();
+    for (Object key : keys) {
+      states.add(new State(key));
+    }
+    return states;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.content.Intent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static flow.InternalLifecycleIntegration.HANDOFF_KEY;
+import static flow.StateTest.PARCELER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Bundle
+public class HistoryHandoffTest {
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final History history = History.emptyBuilder().push(able).push(baker).build();
+
+  @Test public void sameProcessReceivesSentInstance() {
+    Intent intent = new Intent();
+    InternalLifecycleIntegration.addHistoryToIntent(intent, history, PARCELER);
+
+    assertThat(read(intent)).isSameAs(history);
+  }
+
+  @Test public void tokenIsTakenOnce() {
+    Intent intent = new Intent();
+    InternalLifecycleIntegration.addHistoryToIntent(intent, history, PARCELER);
+    String token = intent.getStringExtra(HANDOFF_KEY);
+
+    assertThat(HistoryHandoff.take(token)).isSameAs(history);
+    assertThat(HistoryHandoff.take(token)).isNull();
+  }
+
+  @Test public void missingTokenFallsBackToParceledCopy() {
+    Intent intent = new Intent();
+    InternalLifecycleIntegration.addHistoryToIntent(intent, history, PARCELER);
+    // As if received by another process, or after this one died.
+    HistoryHandoff.take(intent.getStringExtra(HANDOFF_KEY));
+
+    History received = read(intent);
+    assertThat(received).isNotSameAs(history);
+    assertThat(received.asList()).containsExactly(able, baker);
+  }
+
+  @Test public void undeliveredHistoriesAreEventuallyDropped() {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      tokens.add(HistoryHandoff.put(history));
+    }
+
+    assertThat(HistoryHandoff.take(tokens.get(0))).isNull();
+    assertThat(HistoryHandoff.take(tokens.get(99))).isSameAs(history);
+  }
+
+  private static History read(Intent intent) {
+    return InternalLifecycleIntegration.historyFromIntent(intent, PARCELER,
+        new KeyManager(Collections.<ServicesFactory>emptyList()));
+  }
+}
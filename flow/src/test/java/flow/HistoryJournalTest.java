@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static flow.StateTest.PARCELER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Parcel
+public class HistoryJournalTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final InMemoryStateStore store = new InMemoryStateStore();
+  private final List<Runnable> queued = new ArrayList<>();
+  private final Executor executor = new Executor() {
+    @Override public void execute(Runnable command) {
+      queued.add(command);
+    }
+  };
+  private final HistoryJournal journal = new HistoryJournal(store, "test", PARCELER, executor);
+
+  @Test public void readsBackRecordedHistory() {
+    journal.record(History.emptyBuilder() //
+        .push(new TestKey("Able")) //
+        .push(new TestKey("Baker")) //
+        .build());
+    runQueued();
+
+    History history = journal.read();
+    assertThat(history.asList()).containsExactly(new TestKey("Able"), new TestKey("Baker"));
+  }
+
+  @Test public void coalescesPendingWrites() {
+    journal.record(History.single(new TestKey("Able")));
+    journal.record(History.single(new TestKey("Baker")));
+    journal.record(History.single(new TestKey("Charlie")));
+    assertThat(queued).hasSize(1);
+    assertThat(journal.read()).isNull();
+
+    runQueued();
+    assertThat(journal.read().asList()).containsExactly(new TestKey("Charlie"));
+  }
+
+  @Test public void clearForgetsHistory() throws IOException {
+    journal.record(History.single(new TestKey("Able")));
+    runQueued();
+    journal.clear();
+    runQueued();
+
+    assertThat(journal.read()).isNull();
+    assertThat(store.get("test")).isNull();
+  }
+
+  @Test public void unreadableHistoryReadsNull() throws IOException {
+    store.put("test", new byte[] {1, 2, 3});
+    assertThat(journal.read()).isNull();
+  }
+
+  @Test public void dropsHistoryReplayedWithoutRecovering() throws IOException {
+    journal.record(History.single(new TestKey("Able")));
+    runQueued();
+
+    // Each launch replays the history, then dies before recording another.
+    for (int i = 0; i < HistoryJournal.MAX_REPLAYS; i++) {
+      assertThat(relaunch().read().asList()).containsExactly(new TestKey("Able"));
+    }
+    assertThat(relaunch().read()).isNull();
+    runQueued();
+    assertThat(store.get("test")).isNull();
+    assertThat(relaunch().read()).isNull();
+  }
+
+  @Test public void replaysAgainOnceHealthy() {
+    journal.record(History.single(new TestKey("Able")));
+    runQueued();
+
+    for (int i = 0; i <= HistoryJournal.MAX_REPLAYS; i++) {
+      HistoryJournal launched = relaunch();
+      assertThat(launched.read().asList()).containsExactly(new TestKey("Able"));
+      launched.markHealthy();
+      runQueued();
+    }
+  }
+
+  @Test public void recordingMarksReplayHealthy() {
+    journal.record(History.single(new TestKey("Able")));
+    runQueued();
+
+    for (int i = 0; i <= HistoryJournal.MAX_REPLAYS; i++) {
+      HistoryJournal launched = relaunch();
+      assertThat(launched.read().asList()).containsExactly(new TestKey("Able"));
+      launched.record(History.single(new TestKey("Able")));
+      runQueued();
+    }
+  }
+
+  @Test public void prefetchReadsOnExecutor() {
+    journal.record(History.single(new TestKey("Able")));
+    runQueued();
+
+    HistoryJournal launched = relaunch();
+    launched.prefetch();
+    assertThat(queued).hasSize(1);
+    runQueued();
+    // Read from what was prefetched, not the store.
+    store.remove("test");
+    assertThat(launched.read().asList()).containsExactly(new TestKey("Able"));
+  }
+
+  @Test public void readsBackHistoryAfterMappedLogIsCompacted() throws IOException {
+    File file = new File(temporaryFolder.getRoot(), "history.log");
+    MappedStateStore mapped = new MappedStateStore(file);
+    HistoryJournal other = new HistoryJournal(mapped, "other", PARCELER, executor);
+    other.record(History.single(new TestKey("Other")));
+    runQueued();
+
+    // Each history replaces the last, until the dead records outweigh the live ones.
+    HistoryJournal journal = new HistoryJournal(mapped, "test", PARCELER, executor);
+    char[] padding = new char[1024];
+    Arrays.fill(padding, 'x');
+    for (int i = 0; i < 200; i++) {
+      journal.record(History.single(new TestKey("Able" + i + new String(padding))));
+      runQueued();
+    }
+    journal.record(History.single(new TestKey("Baker")));
+    runQueued();
+    assertThat(file.length()).isLessThan(200 * 1024);
+    mapped.close();
+
+    mapped = new MappedStateStore(file);
+    try {
+      assertThat(new HistoryJournal(mapped, "test", PARCELER, executor).read().asList()) //
+          .containsExactly(new TestKey("Baker"));
+      assertThat(new HistoryJournal(mapped, "other", PARCELER, executor).read().asList()) //
+          .containsExactly(new TestKey("Other"));
+    } finally {
+      mapped.close();
+    }
+  }
+
+  /** @return a journal over the same store, as created when the process is next started */
+  private HistoryJournal relaunch() {
+    return new HistoryJournal(store, "test", PARCELER, executor);
+  }
+
+  private void runQueued() {
+    for (Runnable runnable : new ArrayList<>(queued)) {
+      runnable.run();
+    }
+    queued.clear();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+import android.widget.TwoLineListItem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Views
+public class LayoutDispatcherTest {
+  private final TestKey able = new TestKey("Able");
+  private final TestKey baker = new TestKey("Baker");
+  private final FrameLayout container = new FrameLayout(RuntimeEnvironment.application);
+  private final List<Object> layoutsAsked = new ArrayList<>();
+  private Flow flow;
+
+  @Before public void setUp() {
+    KeyLayouts layouts = new KeyLayouts() {
+      @Override public int layoutFor(@NonNull Object key) {
+        layoutsAsked.add(key);
+        return key.equals(baker) ? android.R.layout.simple_list_item_2
+            : android.R.layout.simple_list_item_1;
+      }
+    };
+    flow = new Flow(new KeyManager(Collections.<ServicesFactory>emptyList()),
+        History.single(able));
+    flow.setDispatcher(LayoutDispatcher.create(container, layouts));
+  }
+
+  @Test public void showsLayoutOfTopKey() {
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(container.getChildAt(0)).isInstanceOf(TextView.class);
+
+    flow.set(baker);
+    assertThat(container.getChildCount()).isEqualTo(1);
+    assertThat(container.getChildAt(0)).isInstanceOf(TwoLineListItem.class);
+    assertThat(Flow.<TestKey>getKey(container.getChildAt(0))).isEqualTo(baker);
+  }
+
+  @Test public void sameTopKeyIsNotInflatedAgain() {
+    flow.set(able);
+
+    assertThat(layoutsAsked).containsExactly(able);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(Parameterized.class)
+public class LogStateStoreTest {
+  @Parameterized.Parameters(name = "{0}") public static Collection<Object[]> stores() {
+    return Arrays.asList(new Object[][] {{"file"}, {"mapped"}});
+  }
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final String type;
+  private File file;
+  private LogStateStore store;
+
+  public LogStateStoreTest(String type) {
+    this.type = type;
+  }
+
+  @Before public void setUp() {
+    file = new File(temporaryFolder.getRoot(), "states/states.log");
+    store = open();
+  }
+
+  @After public void tearDown() throws IOException {
+    store.close();
+  }
+
+  @Test public void putGetRemove() throws IOException {
+    store.put("a", new byte[] {1, 2, 3});
+    store.put("b", new byte[0]);
+    assertThat(store.get("a")).containsExactly(1, 2, 3);
+    assertThat(store.get("b")).isEmpty();
+
+    store.put("a", new byte[] {4});
+    assertThat(store.get("a")).containsExactly(4);
+
+    store.remove("a");
+    assertThat(store.get("a")).isNull();
+    assertThat(store.get("missing")).isNull();
+  }
+
+  @Test public void survivesReopening() throws IOException {
+    store.put("a", new byte[] {1});
+    store.put("b", new byte[] {2});
+    store.put("a", new byte[] {3});
+    store.remove("b");
+    store.close();
+
+    store = open();
+    assertThat(store.get("a")).containsExactly(3);
+    assertThat(store.get("b")).isNull();
+  }
+
+  @Test public void ignoresTruncatedRecord() throws IOException {
+    // A mapped log is written back by the kernel, which outlives a crashed process.
+    assumeTrue("file".equals(type));
+    store.put("a", new byte[] {1});
+    store.put("b", new byte[100]);
+    store.close();
+
+    // Cut the last record short, as if the process died while writing it.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 50);
+    } finally {
+      raf.close();
+    }
+
+    store = open();
+    assertThat(store.get("a")).containsExactly(1);
+    assertThat(store.get("b")).isNull();
+    store.put("c", new byte[] {2});
+    store.close();
+
+    store = open();
+    assertThat(store.get("a")).containsExactly(1);
+    assertThat(store.get("c")).containsExactly(2);
+  }
+
+  @Test public void compactsReplacedRecords() throws IOException {
+    byte[] data = new byte[1024];
+    for (int i = 0; i < 500; i++) {
+      data[0] = (byte) i;
+      store.put("a", data);
+    }
+    store.put("b", new byte[] {7});
+    assertThat(file.length()).isLessThan(500 * 1024);
+
+    assertThat(store.get("a")[0]).isEqualTo((byte) 499);
+    store.close();
+    store = open();
+    assertThat(store.get("a")[0]).isEqualTo((byte) 499);
+    assertThat(store.get("b")).containsExactly(7);
+  }
+
+  @Test public void compactionKeepsRecordsThatWereNeverReplaced() throws IOException {
+    store.put("keep", new byte[] {42});
+    byte[] data = new byte[1024];
+    for (int i = 0; i < 500; i++) {
+      store.put("a", data);
+    }
+    assertThat(file.length()).isLessThan(500 * 1024);
+
+    assertThat(store.get("keep")).containsExactly(42);
+    store.close();
+    store = open();
+    assertThat(store.get("keep")).containsExactly(42);
+  }
+
+  private LogStateStore open() {
+    return "mapped".equals(type) ? new MappedStateStore(file) : new FileStateStore(file);
+  }
+}
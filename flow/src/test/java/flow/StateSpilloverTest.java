@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.os.Bundle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Parcel
+public class StateSpilloverTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File file;
+  private FileStateStore store;
+  private StateSpillover spillover;
+
+  @Before public void setUp() {
+    file = new File(temporaryFolder.getRoot(), "spill/states.log");
+    store = new FileStateStore(file);
+    spillover = new StateSpillover(store);
+  }
+
+  @Test public void roundTrip() {
+    Bundle bundle = new Bundle();
+    bundle.putString("name", "Able");
+    bundle.putIntArray("ids", new int[] {1, 2, 3});
+
+    String token = spillover.write(bundle);
+    assertThat(token).isNotNull();
+
+    Bundle read = spillover.read(token);
+    assertThat(read.getString("name")).isEqualTo("Able");
+    assertThat(read.getIntArray("ids")).containsExactly(1, 2, 3);
+  }
+
+  @Test public void deletedTokenReadsNull() throws IOException {
+    String token = spillover.write(new Bundle());
+    spillover.delete(token);
+    assertThat(spillover.read(token)).isNull();
+    assertThat(store.get(token)).isNull();
+  }
+
+  @Test public void unknownTokenReadsNull() {
+    assertThat(spillover.read("nope")).isNull();
+  }
+
+  @Test public void startDeletesRecordsOfSessionsTooOldToBeRestored() throws IOException {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      tokens.add(writeInDormantSession(null));
+    }
+
+    new StateSpillover(store).start(null);
+
+    assertThat(store.get(tokens.get(0))).isNull();
+    assertThat(store.get(tokens.get(1))).isNull();
+    for (String token : tokens.subList(2, tokens.size())) {
+      assertThat(store.get(token)).isNotNull();
+    }
+  }
+
+  @Test public void restoredSessionKeepsItsRecords() throws IOException {
+    StateSpillover saved = new StateSpillover(store);
+    saved.start(null);
+    String savedToken = saved.write(new Bundle());
+    restartProcess();
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      tokens.add(writeInDormantSession(null));
+    }
+
+    // Restoring makes it the most recent session.
+    writeInDormantSession(saved.session());
+    new StateSpillover(store).start(null);
+
+    assertThat(store.get(savedToken)).isNotNull();
+    assertThat(store.get(tokens.get(0))).isNull();
+    assertThat(store.get(tokens.get(1))).isNotNull();
+  }
+
+  @Test public void finishDeletesRecordsOfSession() throws IOException {
+    spillover.start(null);
+    String token = spillover.write(new Bundle());
+    spillover.finish();
+    assertThat(store.get(token)).isNull();
+  }
+
+  @Test public void batchWritesSessionRecordsOnce() {
+    StateTest.CountingStore counting = new StateTest.CountingStore();
+    StateSpillover batching = new StateSpillover(counting);
+    batching.start(null);
+    int writes = counting.writes;
+
+    batching.beginBatch();
+    for (int i = 0; i < 3; i++) {
+      batching.write(new Bundle());
+    }
+    batching.endBatch();
+    assertThat(counting.writes).isEqualTo(writes + 4);
+
+    batching.finish();
+    // Only the list of sessions is left.
+    assertThat(counting.size()).isEqualTo(1);
+  }
+
+  /** Writes a record in a session that is saved, and never restored in its process. */
+  private String writeInDormantSession(String savedSession) throws IOException {
+    StateSpillover session = new StateSpillover(store);
+    session.start(savedSession);
+    String token = session.write(new Bundle());
+    restartProcess();
+    return token;
+  }
+
+  private void restartProcess() throws IOException {
+    store.close();
+    store = new FileStateStore(file);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Bundle
+public class StateTest {
+  static final KeyParceler PARCELER = new KeyParceler() {
+    @NonNull @Override public Parcelable toParcelable(@NonNull Object key) {
+      Bundle bundle = new Bundle();
+      bundle.putString("name", ((TestKey) key).name);
+      return bundle;
+    }
+
+    @NonNull @Override public Object toKey(@NonNull Parcelable parcelable) {
+      return new TestKey(((Bundle) parcelable).getString("name"));
+    }
+  };
+
+  @Test public void unchangedStateReusesEncoding() {
+    State state = new State(new TestKey("Able"));
+    Bundle first = state.toBundle(PARCELER);
+    assertThat(state.toBundle(PARCELER)).isSameAs(first);
+  }
+
+  @Test public void setBundleInvalidatesEncoding() {
+    State state = new State(new TestKey("Able"));
+    Bundle first = state.toBundle(PARCELER);
+
+    Bundle bundle = new Bundle();
+    bundle.putString("extra", "value");
+    state.setBundle(bundle);
+
+    Bundle second = state.toBundle(PARCELER);
+    assertThat(second).isNotSameAs(first);
+    assertThat(State.fromBundle(second, PARCELER, null).getBundle().getString("extra"))
+        .isEqualTo("value");
+  }
+
+  @Test public void restoredStateReusesSavedForm() {
+    Bundle saved = new State(new TestKey("Able")).toBundle(PARCELER);
+    State restored = State.fromBundle(saved, PARCELER, null);
+    assertThat(restored.<TestKey>getKey()).isEqualTo(new TestKey("Able"));
+    assertThat(restored.toBundle(PARCELER)).isSameAs(saved);
+  }
+
+  @Test public void restoredStateDecodesBundleOnDemand() {
+    State state = new State(new TestKey("Able"));
+    Bundle bundle = new Bundle();
+    bundle.putInt("count", 3);
+    state.setBundle(bundle);
+
+    State restored = State.fromBundle(state.toBundle(PARCELER), PARCELER, null);
+    assertThat(restored.getBundle().getInt("count")).isEqualTo(3);
+  }
+
+  @Test public void decodesStateSavedWithoutContents() {
+    Bundle bundle = new Bundle();
+    bundle.putInt("count", 3);
+    Bundle saved = new Bundle();
+    saved.putParcelable("KEY", PARCELER.toParcelable(new TestKey("Able")));
+    saved.putIntArray("VIEW_STATE_IDS", new int[0]);
+    saved.putBundle("BUNDLE", bundle);
+
+    State restored = State.fromBundle(saved, PARCELER, null);
+    assertThat(restored.getBundle().getInt("count")).isEqualTo(3);
+  }
+
+  @Test public void estimateSizeTracksChanges() {
+    State state = new State(new TestKey("Able"));
+    int emptySize = state.estimateSize();
+
+    Bundle bundle = new Bundle();
+    bundle.putByteArray("payload", new byte[1024]);
+    state.setBundle(bundle);
+    assertThat(state.estimateSize()).isGreaterThan(emptySize + 1024);
+  }
+
+  @Test public void spilledStateReadsBack() {
+    StateSpillover spillover = new StateSpillover(new InMemoryStateStore());
+    State state = new State(new TestKey("Able"));
+    Bundle bundle = new Bundle();
+    bundle.putInt("count", 3);
+    state.setBundle(bundle);
+
+    state.spill(spillover);
+    assertThat(state.estimateSize()).isZero();
+
+    assertThat(state.getBundle().getInt("count")).isEqualTo(3);
+  }
+
+  @Test public void spilledStateIsSavedWithoutReadingItBack() {
+    CountingStore store = new CountingStore();
+    StateSpillover spillover = new StateSpillover(store);
+    int reads = store.reads;
+    State state = new State(new TestKey("Able"));
+    Bundle bundle = new Bundle();
+    bundle.putInt("count", 3);
+    state.setBundle(bundle);
+    state.spill(spillover);
+
+    Bundle saved = state.toBundle(PARCELER);
+    state.toContentsBundle();
+    assertThat(store.reads).isEqualTo(reads);
+    assertThat(state.estimateSize()).isZero();
+
+    State restored = State.fromBundle(saved, PARCELER, spillover);
+    assertThat(restored.getBundle().getInt("count")).isEqualTo(3);
+    assertThat(store.reads).isEqualTo(reads + 1);
+  }
+
+  @Test public void changedSpilledStateIsSavedInline() {
+    CountingStore store = new CountingStore();
+    StateSpillover spillover = new StateSpillover(store);
+    spillover.start(null);
+    int records = store.size();
+    State state = new State(new TestKey("Able"));
+    state.setBundle(new Bundle());
+    state.spill(spillover);
+    Bundle pointer = state.toBundle(PARCELER);
+
+    state.getBundle().putInt("count", 4);
+    Bundle saved = state.toBundle(PARCELER);
+    assertThat(saved).isNotSameAs(pointer);
+    assertThat(store.size()).isEqualTo(records);
+    assertThat(State.fromBundle(saved, PARCELER, null).getBundle().getInt("count")).isEqualTo(4);
+  }
+
+  @Test public void estimateSizeTracksChangesToBundle() {
+    State state = new State(new TestKey("Able"));
+    state.setBundle(new Bundle());
+    int emptySize = state.estimateSize();
+
+    state.getBundle().putByteArray("payload", new byte[1024]);
+    assertThat(state.estimateSize()).isGreaterThan(emptySize + 1024);
+  }
+
+  /** Counts reads and writes, and how many records it holds. */
+  static final class CountingStore implements StateStore {
+    private final InMemoryStateStore delegate = new InMemoryStateStore();
+    private final Set<String> ids = new HashSet<>();
+    int reads;
+    int writes;
+
+    @Override public void put(@NonNull String id, @NonNull byte[] data) {
+      writes++;
+      ids.add(id);
+      delegate.put(id, data);
+    }
+
+    @Nullable @Override public byte[] get(@NonNull String id) {
+      reads++;
+      return delegate.get(id);
+    }
+
+    @Override public void remove(@NonNull String id) {
+      ids.remove(id);
+      delegate.remove(id);
+    }
+
+    int size() {
+      return ids.size();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Loopers
+public class ThreadSafeFlowTest {
+  private static final int THREADS = 4;
+  private static final int CALLS = 50;
+
+  private final TestKey able = new TestKey("Able");
+  private final Flow flow = new Flow(new KeyManager(Collections.<ServicesFactory>emptyList()),
+      History.single(able));
+
+  @Test public void backgroundCallsAreDrainedOnMainThread() throws InterruptedException {
+    setDispatcher();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      threads.add(new Thread(new Runnable() {
+        @Override public void run() {
+          for (int i = 0; i < CALLS; i++) {
+            flow.threadSafe().set(new TestKey(thread + "-" + i));
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(flow.getHistory().size()).isEqualTo(1);
+
+    ShadowLooper.runUiThreadTasks();
+    List<Object> keys = flow.getHistory().asList();
+    assertThat(keys).hasSize(1 + THREADS * CALLS);
+    // Each thread's calls took effect in the order it made them.
+    for (int t = 0; t < THREADS; t++) {
+      int last = -1;
+      for (int i = 0; i < CALLS; i++) {
+        int index = keys.indexOf(new TestKey(t + "-" + i));
+        assertThat(index).isGreaterThan(last);
+        last = index;
+      }
+    }
+  }
+
+  @Test public void mainThreadCallsFollowQueuedOnes() throws InterruptedException {
+    setDispatcher();
+    Thread background = new Thread(new Runnable() {
+      @Override public void run() {
+        flow.threadSafe().set(new TestKey("Background"));
+      }
+    });
+    background.start();
+    background.join();
+
+    flow.threadSafe().set(new TestKey("Main"));
+    assertThat(flow.getHistory().asList()).containsExactly(able, new TestKey("Background"),
+        new TestKey("Main"));
+
+    ShadowLooper.runUiThreadTasks();
+    assertThat(flow.getHistory().size()).isEqualTo(3);
+  }
+
+  private void setDispatcher() {
+    flow.setDispatcher(new Dispatcher() {
+      @Override public void dispatch(@NonNull Traversal traversal,
+          @NonNull TraversalCallback callback) {
+        callback.onTraversalCompleted();
+      }
+    });
+  }
+}
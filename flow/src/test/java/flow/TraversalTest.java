@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.ContextWrapper;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Contexts
+public class TraversalTest {
+  private final TestKey able = new TestKey("Able");
+  private final KeyManager keyManager =
+      new KeyManager(Collections.<ServicesFactory>emptyList());
+  private final Traversal traversal =
+      new Traversal(null, History.single(able), Direction.REPLACE, keyManager);
+
+  @Test public void contextIsReusedWhileScopeLives() {
+    Context base = RuntimeEnvironment.application;
+    keyManager.setUp(able);
+
+    Context context = traversal.createContext(able, base);
+    assertThat(Flow.<TestKey>getKey(context)).isEqualTo(able);
+    assertThat(traversal.createContext(able, base)).isSameAs(context);
+    assertThat(traversal.createContext(able, new ContextWrapper(base))).isNotSameAs(context);
+
+    keyManager.tearDown(able);
+    keyManager.setUp(able);
+    assertThat(traversal.createContext(able, base)).isNotSameAs(context);
+  }
+
+  @Test public void contextIsReusedAfterItsViewsAreCollected() {
+    Context base = RuntimeEnvironment.application;
+    keyManager.setUp(able);
+    WeakReference<Context> first = new WeakReference<>(traversal.createContext(able, base));
+
+    // Nothing else refers to the Context, as once the views of a screen are gone.
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+
+    assertThat(first.get()).isNotNull();
+    assertThat(traversal.createContext(able, base)).isSameAs(first.get());
+  }
+
+  @Test public void contextsOverActivityAreDroppedWhenItIsDestroyed() {
+    Activity activity = Robolectric.setupActivity(Activity.class);
+    keyManager.setUp(able);
+    Context themed = new ContextWrapper(activity);
+    Context context = traversal.createContext(able, activity);
+    Context wrapped = traversal.createContext(able, themed);
+    Context other = traversal.createContext(able, RuntimeEnvironment.application);
+
+    keyManager.releaseContexts(activity);
+
+    assertThat(traversal.createContext(able, activity)).isNotSameAs(context);
+    assertThat(traversal.createContext(able, themed)).isNotSameAs(wrapped);
+    assertThat(traversal.createContext(able, RuntimeEnvironment.application)).isSameAs(other);
+  }
+}
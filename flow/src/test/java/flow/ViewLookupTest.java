@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flow;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.view.View;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Views
+public class ViewLookupTest {
+  /** Counts the lookups of Flow's wrapper that reach it. */
+  static class CountingContext extends ContextWrapper {
+    int lookups;
+
+    CountingContext(Context base) {
+      super(base);
+    }
+
+    @Override public Object getSystemService(String name) {
+      if (FlowContextWrapper.SYSTEM_SERVICE.equals(name)) lookups++;
+      return super.getSystemService(name);
+    }
+  }
+
+  private final TestKey able = new TestKey("Able");
+
+  @Test public void viewLookupsWalkContextsOnce() {
+    Services services = Services.ROOT_SERVICES.extend(able).bind("name", "Able").build();
+    CountingContext counting =
+        new CountingContext(new FlowContextWrapper(services, RuntimeEnvironment.application));
+    View view = new View(counting);
+
+    assertThat(Flow.<TestKey>getKey(view)).isEqualTo(able);
+    assertThat(Flow.<String>getService("name", view)).isEqualTo("Able");
+    assertThat(Flow.<TestKey>getKey(view)).isEqualTo(able);
+    assertThat(counting.lookups).isEqualTo(1);
+  }
+
+  @Test public void missingWrapperIsRemembered() {
+    CountingContext counting = new CountingContext(RuntimeEnvironment.application);
+    View view = new View(counting);
+
+    assertThat(Flow.<TestKey>getKey(view)).isNull();
+    assertThat(Flow.<String>getService("name", view)).isNull();
+    assertThat(counting.lookups).isEqualTo(1);
+  }
+}